@@ -39,16 +39,20 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
 
+import com.webolatry.distance.format.TextFormatter;
+import com.webolatry.distance.provider.CachedDistanceProvider;
+import com.webolatry.distance.provider.DistanceProvider;
+import com.webolatry.distance.provider.LocalDistanceProvider;
+import com.webolatry.distance.provider.ProviderSelector;
+import com.webolatry.distance.provider.RemoteDistanceProvider;
 import com.webolatry.distance.service.Point;
-import com.webolatry.distance.service.Service;
 import com.webolatry.distance.service.ServiceException;
+import com.webolatry.distance.trace.MotionStats;
+import com.webolatry.distance.waypoint.WaypointStore;
 
 /**
  * Android activity with controls for obtaining two gps positions and calling a
@@ -70,12 +74,33 @@ public class DistanceActivity extends Activity implements LocationListener {
 	private TextView mEditPoint2;
 	/** output for the computed distance */
 	private TextView mEditDistance;
+	/** output for the closing speed and time to the end location */
+	private TextView mEditProgress;
+	/** output for the saved waypoints closest to the gps location */
+	private TextView mEditNearest;
+
+	/*
+	 * text for each output, reused for every update. A TextView keeps the
+	 * array it is given, so each view needs its own.
+	 */
+	private TextFormatter mPoint1Text = new TextFormatter(32);
+	private TextFormatter mPoint2Text = new TextFormatter(32);
+	private TextFormatter mDistanceText = new TextFormatter(32);
+	private TextFormatter mProgressText = new TextFormatter(32);
+	private TextFormatter mNearestText = new TextFormatter(64);
 
 	/** current running get-distance task */
 	private DistanceTask mTask;
+	/**
+	 * source of distances: the server, answered locally if the server fails
+	 * or is unusually slow
+	 */
+	private ProviderSelector mDistanceProvider;
 
 	/** current location from gps */
 	private Point mGPSPoint;
+	/** speed and closing rate over the recent fixes, toward mPoint2 */
+	private MotionStats mMotion = new MotionStats();
 	/** user-set start location */
 	private Point mPoint1;
 	/** user-set end location */
@@ -85,6 +110,30 @@ public class DistanceActivity extends Activity implements LocationListener {
 	private static final String STATE_POINT1 = "STATE_POINT1";
 	/** for persisting the state of user-set point 2 */
 	private static final String STATE_POINT2 = "STATE_POINT2";
+	/** file holding the saved waypoints */
+	private static final String WAYPOINT_FILE = "waypoints";
+	/** file holding the distances between the saved waypoints */
+	private static final String DISTANCE_FILE = "waypoint_distances";
+	/** number of closest waypoints shown */
+	private static final int NEAREST_COUNT = 3;
+	/** names of the user-set points, which aren't listed as waypoints */
+	private static final String STATE_PREFIX = "STATE_";
+
+	/** saved waypoints, including the user-set points */
+	private WaypointStore mWaypoints;
+	/** loads mWaypoints, null once loading has finished */
+	private LoadWaypointsTask mLoadTask;
+	/**
+	 * true once the waypoint file has been read. If it couldn't be, the
+	 * file is never overwritten, it may still hold the user's waypoints.
+	 */
+	private boolean mWaypointsLoaded;
+	/**
+	 * the closest waypoints to the gps location, with room for the
+	 * user-set points that are skipped
+	 */
+	private String[] mNearestNames = new String[NEAREST_COUNT + 2];
+	private double[] mNearestMeters = new double[NEAREST_COUNT + 2];
 
 	/**
 	 * Called when the activity is starting (Activity override)
@@ -100,50 +149,24 @@ public class DistanceActivity extends Activity implements LocationListener {
 		mEditPoint1 = (TextView) findViewById(R.id.editPoint1);
 		mEditPoint2 = (TextView) findViewById(R.id.editPoint2);
 		mEditDistance = (TextView) findViewById(R.id.editDistance);
+		mEditProgress = (TextView) findViewById(R.id.editProgress);
+		mEditNearest = (TextView) findViewById(R.id.editNearest);
 
-		/*
-		 * if an error occurs restoring the point state, display a message
-		 */
-		boolean error = false;
-
-		/* restore the saved point1, if available */
-		try {
-			mPoint1 = restorePointState(STATE_POINT1);
-		} catch (IOException e) {
-			e.printStackTrace();
-			error = true;
-		}
+		/* the saved points are restored by the load task */
+		mEditPoint1.setText("");
+		mEditPoint2.setText("");
 
-		/* restore the saved point2, if available */
-		try {
-			mPoint2 = restorePointState(STATE_POINT2);
-		} catch (IOException e) {
-			e.printStackTrace();
-			error = true;
-		}
+		/* load the saved waypoints off the UI thread */
+		mWaypoints = new WaypointStore(getFileStreamPath(WAYPOINT_FILE),
+				getFileStreamPath(DISTANCE_FILE));
+		mLoadTask = new LoadWaypointsTask();
+		mLoadTask.execute();
 
-		if (error) {
-			/* if one point failed, consider both bad */
-			mPoint1 = null;
-			mPoint2 = null;
-			showMessage(
-					"An error occurred restoring saved start and end locations",
-					"Error");
-		}
+		/* the server stays preferred, the local engine is the fallback */
+		mDistanceProvider = new ProviderSelector(new CachedDistanceProvider(
+				new RemoteDistanceProvider(), 16), new LocalDistanceProvider());
+		mDistanceProvider.setRouteByLatency(false);
 
-		/* populate UI with restored point values */
-		if (mPoint1 != null) {
-			mEditPoint1.setText(formatPoint(mPoint1));
-		} else {
-			mEditPoint1.setText("");
-		}
-		
-		if (mPoint2 != null) {
-			mEditPoint2.setText(formatPoint(mPoint2));
-		} else {
-			mEditPoint2.setText("");
-		}
-		
 		/* get the gps service */
 		mLocationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
 
@@ -176,7 +199,7 @@ public class DistanceActivity extends Activity implements LocationListener {
 							.show();
 				} else {
 					mPoint1 = new Point(mGPSPoint);
-					mEditPoint1.setText(formatPoint(mPoint1));
+					showPoint(mEditPoint1, mPoint1Text, mPoint1);
 				}
 			}
 		});
@@ -192,7 +215,8 @@ public class DistanceActivity extends Activity implements LocationListener {
 							.show();
 				} else {
 					mPoint2 = new Point(mGPSPoint);
-					mEditPoint2.setText(formatPoint(mPoint2));
+					showPoint(mEditPoint2, mPoint2Text, mPoint2);
+					mMotion.setTarget(mPoint2.x, mPoint2.y);
 				}
 			}
 		});
@@ -226,7 +250,8 @@ public class DistanceActivity extends Activity implements LocationListener {
 							mTask.cancel(true);
 
 						/* start async task to obtain distance from server */
-						mTask = new DistanceTask(mPoint1, mPoint2);
+						mTask = new DistanceTask(mDistanceProvider, mPoint1,
+								mPoint2);
 						mTask.execute();
 					}
 				}
@@ -242,21 +267,35 @@ public class DistanceActivity extends Activity implements LocationListener {
 	protected void onDestroy() {
 		super.onDestroy();
 
-		/* save the user established points, to be restored in onCreate */
-		try {
-			savePointState(mPoint1, STATE_POINT1);
-			savePointState(mPoint2, STATE_POINT2);
-		} catch (IOException e) {
-			e.printStackTrace();
-			/* showing an alert won't work here, the activity is closing
-			 * TODO some other way to inform the user of problems
-			 * saving point state
-			 */
+		/*
+		 * save the user established points, to be restored in onCreate. If
+		 * the waypoints haven't finished loading, or failed to load, saving
+		 * now would overwrite them with an incomplete set
+		 */
+		if (mLoadTask != null) {
+
+			mLoadTask.cancel(true);
+
+		} else if (mWaypointsLoaded) {
+
+			try {
+				savePointState(mPoint1, STATE_POINT1);
+				savePointState(mPoint2, STATE_POINT2);
+				mWaypoints.commit();
+			} catch (IOException e) {
+				e.printStackTrace();
+				/* showing an alert won't work here, the activity is closing
+				 * TODO some other way to inform the user of problems
+				 * saving point state
+				 */
+			}
 		}
 
 		/* cancel any running task, otherwise the wait dialog becomes orphaned */
 		if (mTask != null)
 			mTask.cancel(true);
+
+		mDistanceProvider.shutdown();
 	}
 
 	/**
@@ -266,9 +305,13 @@ public class DistanceActivity extends Activity implements LocationListener {
 	@Override
 	protected void onResume() {
 
+		/*
+		 * every fix, however short the move: the speed and closing rate need
+		 * the slow ones too
+		 */
 		if (mLocationManager != null) {
 			mLocationManager.requestLocationUpdates(
-					LocationManager.GPS_PROVIDER, 1000, 10f, this);
+					LocationManager.GPS_PROVIDER, 1000, 0f, this);
 
 			if (mLocationManager
 					.isProviderEnabled(LocationManager.GPS_PROVIDER))
@@ -300,6 +343,48 @@ public class DistanceActivity extends Activity implements LocationListener {
 
 		mEditStatus.setText("Location Available");
 		mGPSPoint = new Point(location.getLongitude(), location.getLatitude());
+
+		mMotion.onFix(location.getTime(), location.getLongitude(),
+				location.getLatitude(), Double.NaN, Float.NaN, Float.NaN,
+				Float.NaN);
+
+		/* closing speed and time to go, once there is an end location */
+		if (mPoint2 != null) {
+			mProgressText.formatProgress(mMotion.getClosingRate(),
+					mMotion.getSecondsToTarget(), false);
+			mEditProgress.setText(mProgressText.getBuffer(), 0,
+					mProgressText.length());
+		}
+
+		/* the closest saved waypoints, once they have loaded */
+		if (mLoadTask == null)
+			showNearest(location.getLongitude(), location.getLatitude());
+	}
+
+	/**
+	 * Displays the saved waypoints closest to a location, other than the
+	 * user-set points
+	 * 
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 */
+	private void showNearest(double x, double y) {
+
+		int found = mWaypoints.track(x, y, mNearestNames, mNearestMeters);
+
+		int count = 0;
+		for (int i = 0; i < found && count < NEAREST_COUNT; i++) {
+			if (!mNearestNames[i].startsWith(STATE_PREFIX)) {
+				mNearestNames[count] = mNearestNames[i];
+				mNearestMeters[count] = mNearestMeters[i];
+				count++;
+			}
+		}
+
+		mNearestText.formatNamedDistances(mNearestNames, mNearestMeters,
+				count, false);
+		mEditNearest.setText(mNearestText.getBuffer(), 0,
+				mNearestText.length());
 	}
 
 	/**
@@ -310,6 +395,7 @@ public class DistanceActivity extends Activity implements LocationListener {
 
 		mEditStatus.setText("Disabled");
 		mGPSPoint = null;
+		resetMotion();
 	}
 
 	/**
@@ -334,6 +420,7 @@ public class DistanceActivity extends Activity implements LocationListener {
 
 		case LocationProvider.OUT_OF_SERVICE:
 			mEditStatus.setText("Out Of Service");
+			resetMotion();
 			break;
 
 		case LocationProvider.TEMPORARILY_UNAVAILABLE:
@@ -347,32 +434,26 @@ public class DistanceActivity extends Activity implements LocationListener {
 	}
 
 	/**
-	 * Called by the compute-distance-task when the distance has been
-	 * successfully computed
+	 * Forgets the fixes behind the speed and closing rate when the gps is
+	 * lost, so stale values aren't shown and the next fix starts afresh
 	 */
-	private void distanceComputed(double distance) {
-
-		if (distance == 0.0) {
+	private void resetMotion() {
 
-			mEditDistance.setText("0 miles");
-
-		} else if (distance < 1.0) {
-
-			DecimalFormat formater = new DecimalFormat("#.##");
-			distance = distance * 5280.0;
-			StringBuilder sb = new StringBuilder(32);
-			sb.append(formater.format(distance));
-			sb.append(" feet");
-			mEditDistance.setText(sb.toString());
+		mMotion.reset();
+		mEditProgress.setText("");
+	}
 
-		} else {
+	/**
+	 * Called by the compute-distance-task when the distance has been
+	 * successfully computed
+	 * @param meters the distance, in meters
+	 */
+	private void distanceComputed(double meters) {
 
-			DecimalFormat formater = new DecimalFormat("#.##");
-			StringBuilder sb = new StringBuilder(32);
-			sb.append(formater.format(distance));
-			sb.append(" miles");
-			mEditDistance.setText(sb.toString());
-		}
+		/* feet under a mile, otherwise miles */
+		mDistanceText.formatDistance(meters, false);
+		mEditDistance.setText(mDistanceText.getBuffer(), 0,
+				mDistanceText.length());
 	}
 
 	/**
@@ -391,97 +472,43 @@ public class DistanceActivity extends Activity implements LocationListener {
 	}
 
 	/**
-	 * Format the geographic point for output
+	 * Display the geographic point as degrees-minutes-seconds
 	 * 
-	 * @param point the point to format
-	 * @return a string with degrees-minutes-seconds
+	 * @param view the output for the point
+	 * @param text the text reused for this output
+	 * @param point the point to display
 	 */
-	private String formatPoint(Point point) {
-
-		StringBuilder sb = new StringBuilder(32);
+	private void showPoint(TextView view, TextFormatter text, Point point) {
 
-		if (point.y >= 0.0) {
-			sb.append("N ");
-		} else {
-			sb.append("S ");
-		}
-		
-		double remainder = Math.abs(point.y);
-		int degrees = (int) Math.abs(point.y);
-		remainder = (remainder - degrees) * 60.0;
-		int minutes = (int) remainder;
-		remainder = (remainder - minutes) * 60.0;
-		int seconds = (int) remainder;
-
-		sb.append(Integer.toString(degrees));
-		sb.append("");
-		sb.append(Integer.toString(minutes));
-		sb.append("'");
-		sb.append(Integer.toString(seconds));
-		sb.append("\", ");
-
-		if (point.x >= 0.0) {
-			sb.append("E ");
-		} else {
-			sb.append("W ");
-		}
-		
-		remainder = Math.abs(point.x);
-		degrees = (int) remainder;
-		remainder = (remainder - degrees) * 60.0;
-		minutes = (int) remainder;
-		remainder = (remainder - minutes) * 60.0;
-		seconds = (int) remainder;
-
-		sb.append(Integer.toString(degrees));
-		sb.append("");
-		sb.append(Integer.toString(minutes));
-		sb.append("'");
-		sb.append(Integer.toString(seconds));
-		sb.append("\"");
-
-		return sb.toString();
+		text.formatDms(point.x, point.y);
+		view.setText(text.getBuffer(), 0, text.length());
 	}
 
 	/**
-	 * Saves the point data to restore between Activity lifecycles
+	 * Saves the point data to restore between Activity lifecycles. Only
+	 * updates the waypoint store, the caller commits all changes at once.
 	 * 
 	 * @param point the data to save
 	 * @param name  identifier for persistence data
-	 * @throws IOException 
 	 */
-	private void savePointState(Point point, String name) throws IOException {
-
-		/* remove any existing saved state */
-		deleteFile(name);
+	private void savePointState(Point point, String name) {
 
 		if (point != null) {
-
-			try {
-
-				/* save point to a file */
-				FileOutputStream fos;
-				fos = openFileOutput(name, MODE_PRIVATE);
-				DataOutputStream dos = new DataOutputStream(fos);
-				dos.writeDouble(point.x);
-				dos.writeDouble(point.y);
-
-			} catch (IOException e) {
-				/* problem unknown */
-				e.printStackTrace();
-				throw e;
-			}
+			mWaypoints.put(name, point.x, point.y);
+		} else {
+			mWaypoints.remove(name);
 		}
 	}
 
 	/**
-	 * Loads and returns the saved point data
+	 * Loads and returns the point data saved by earlier versions, which used
+	 * one file per point
 	 * 
 	 * @param name identifier for persistence data
 	 * @return the saved point data
 	 * @throws IOException
 	 */
-	private Point restorePointState(String name) throws IOException {
+	private Point restoreLegacyPointState(String name) throws IOException {
 
 		try {
 
@@ -490,14 +517,17 @@ public class DistanceActivity extends Activity implements LocationListener {
 			fis = openFileInput(name);
 			DataInputStream dis = new DataInputStream(fis);
 
-			double x = dis.readDouble();
-			double y = dis.readDouble();
+			try {
+				double x = dis.readDouble();
+				double y = dis.readDouble();
 
-			return new Point(x, y);
+				return new Point(x, y);
+			} finally {
+				dis.close();
+			}
 
 		} catch (FileNotFoundException e) {
-			/* most likely the point state has not yet been saved, swallow this exception */
-			e.printStackTrace();
+			/* the point was never saved, or has already been migrated */
 			return null;
 
 		} catch (IOException e) {
@@ -519,6 +549,85 @@ public class DistanceActivity extends Activity implements LocationListener {
 		alert.show();
 	}
 
+	/**
+	 * Loads the saved waypoints in a background thread, then restores the
+	 * user-set points from them.
+	 * 
+	 * @author Tom
+	 * 
+	 */
+	private class LoadWaypointsTask extends AsyncTask<Void, Void, Boolean> {
+
+		/**
+		 * This is executed in the background thread
+		 */
+		@Override
+		protected Boolean doInBackground(Void... param) {
+
+			try {
+
+				mWaypoints.load();
+				mWaypointsLoaded = true;
+
+				/* move points saved by earlier versions into the store */
+				boolean migrated = false;
+				String[] names = { STATE_POINT1, STATE_POINT2 };
+				for (String name : names) {
+					if (!mWaypoints.contains(name)) {
+						Point point = restoreLegacyPointState(name);
+						if (point != null) {
+							savePointState(point, name);
+							migrated = true;
+						}
+					}
+				}
+
+				if (migrated) {
+					mWaypoints.commit();
+					for (String name : names)
+						deleteFile(name);
+				}
+
+				return Boolean.TRUE;
+
+			} catch (IOException e) {
+				e.printStackTrace();
+				return Boolean.FALSE;
+			}
+		}
+
+		/**
+		 * Runs on the UI thread after doInBackground
+		 */
+		@Override
+		protected void onPostExecute(Boolean result) {
+
+			mLoadTask = null;
+
+			if (!result.booleanValue()) {
+				showMessage(
+						"An error occurred restoring saved start and end locations",
+						"Error");
+				return;
+			}
+
+			/* points set by the user while loading take precedence */
+			if (mPoint1 == null) {
+				mPoint1 = mWaypoints.get(STATE_POINT1);
+				if (mPoint1 != null)
+					showPoint(mEditPoint1, mPoint1Text, mPoint1);
+			}
+
+			if (mPoint2 == null) {
+				mPoint2 = mWaypoints.get(STATE_POINT2);
+				if (mPoint2 != null) {
+					showPoint(mEditPoint2, mPoint2Text, mPoint2);
+					mMotion.setTarget(mPoint2.x, mPoint2.y);
+				}
+			}
+		}
+	}
+
 	/**
 	 * Computes the distance between two points in a background thread.
 	 * 
@@ -529,8 +638,8 @@ public class DistanceActivity extends Activity implements LocationListener {
 
 		/** the wait dialog displayed while the distance service is accessed */
 		private ProgressDialog waitDialog;
-		/** the service used to obtain the distance */
-		private Service mService;
+		/** the provider used to obtain the distance */
+		private DistanceProvider mProvider;
 		/** the start location */
 		private Point mPoint1;
 		/** the end location */
@@ -541,14 +650,16 @@ public class DistanceActivity extends Activity implements LocationListener {
 		/**
 		 * constructor
 		 * 
+		 * @param provider
 		 * @param point1
 		 * @param point2
 		 */
-		public DistanceTask(Point point1, Point point2) {
+		public DistanceTask(DistanceProvider provider, Point point1,
+				Point point2) {
 
+			mProvider = provider;
 			mPoint1 = point1;
 			mPoint2 = point2;
-			mService = new Service();
 		}
 
 		/**
@@ -559,7 +670,8 @@ public class DistanceActivity extends Activity implements LocationListener {
 
 			try {
 
-				double distance = mService.GetDistance(mPoint1, mPoint2);
+				double distance = mProvider.getDistance(mPoint1.x, mPoint1.y,
+						mPoint2.x, mPoint2.y);
 				return Double.valueOf(distance);
 
 			} catch (ServiceException e) {
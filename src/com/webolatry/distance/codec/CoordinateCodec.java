@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.codec;
+
+import com.webolatry.distance.geo.PointBuffer;
+
+/**
+ * Compact encoding of coordinate sequences, for storage and for request
+ * payloads.
+ *
+ * Coordinates are rounded to a fixed number of decimal places, and each
+ * point is stored as the difference from the previous one. Neighbouring
+ * points of a track or route differ by little, so the differences are small
+ * numbers that take one or two bytes instead of the 16 bytes of two doubles.
+ *
+ * Two forms of the same numbers:
+ * <ul>
+ * <li>binary: zigzag varints, 7 bits per byte, longitude then latitude.
+ * The point count is not stored, callers keep it alongside.</li>
+ * <li>polyline: the Google encoded polyline text format, 5 bits per
+ * printable ASCII char, latitude then longitude, self-terminating. With
+ * POLYLINE_PRECISION it is the format Google's APIs and most routing
+ * engines produce and accept.</li>
+ * </ul>
+ *
+ * Decoded coordinates are the nearest doubles to the rounded values, so
+ * encoding them again gives the same bytes. Coordinates must be finite
+ * WGS84 degrees.
+ *
+ * The methods taking byte arrays work directly on primitive arrays and
+ * allocate nothing; the String and CharSequence conveniences copy.
+ *
+ * A codec has no mutable state and can be shared between threads.
+ *
+ * @author Tom
+ *
+ */
+public final class CoordinateCodec {
+
+	/** decimal places of the standard Google polyline, about 1 meter */
+	public static final int POLYLINE_PRECISION = 5;
+
+	/** the most decimal places supported, about 0.1 millimeter */
+	public static final int MAX_PRECISION = 9;
+
+	/** added to each 5-bit polyline chunk to make it printable */
+	private static final int POLYLINE_OFFSET = 63;
+
+	/** decimal places kept */
+	private final int mPrecision;
+	/** 10^precision */
+	private final double mScale;
+	/** the most bytes one binary coordinate can take */
+	private final int mMaxBytes;
+	/** the most chars one polyline coordinate can take */
+	private final int mMaxChars;
+
+	/**
+	 * constructor
+	 *
+	 * @param precision decimal places of degrees to keep, 0 to
+	 *            MAX_PRECISION: 5 is about 1 meter, 6 about 10 centimeters,
+	 *            7 about 1 centimeter
+	 */
+	public CoordinateCodec(int precision) {
+
+		if (precision < 0 || precision > MAX_PRECISION)
+			throw new IllegalArgumentException("Precision must be 0 to "
+					+ MAX_PRECISION);
+
+		mPrecision = precision;
+		mScale = Math.pow(10.0, precision);
+
+		/* the largest zigzagged difference, a jump of 360 degrees */
+		long largest = 2L * (long) (360.0 * mScale) + 1;
+		int bits = 64 - Long.numberOfLeadingZeros(largest);
+		mMaxBytes = (bits + 6) / 7;
+		mMaxChars = (bits + 4) / 5;
+	}
+
+	/**
+	 * @return the decimal places kept
+	 */
+	public int getPrecision() {
+		return mPrecision;
+	}
+
+	/**
+	 * @param count number of points
+	 * @return the most bytes encode() can write for that many points
+	 */
+	public int maxEncodedLength(int count) {
+		return count * 2 * mMaxBytes;
+	}
+
+	/**
+	 * @param count number of points
+	 * @return the most chars encodePolyline() can write for that many points
+	 */
+	public int maxPolylineLength(int count) {
+		return count * 2 * mMaxChars;
+	}
+
+	/**
+	 * Encodes points in the binary form
+	 *
+	 * @param x longitudes (WGS84 degrees)
+	 * @param y latitudes (WGS84 degrees)
+	 * @param offset index of the first point
+	 * @param count number of points
+	 * @param out receives the encoding, room for maxEncodedLength(count)
+	 * @param position index in out to start writing
+	 * @return the index in out after the last byte written
+	 */
+	public int encode(double[] x, double[] y, int offset, int count,
+			byte[] out, int position) {
+
+		long lastX = 0;
+		long lastY = 0;
+
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+
+			long qx = Math.round(x[i] * mScale);
+			long qy = Math.round(y[i] * mScale);
+
+			position = writeVarint(out, position, zigzag(qx - lastX));
+			position = writeVarint(out, position, zigzag(qy - lastY));
+
+			lastX = qx;
+			lastY = qy;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Encodes every point of a buffer in the binary form
+	 *
+	 * @param points the points
+	 * @param out receives the encoding, room for
+	 *            maxEncodedLength(points.size())
+	 * @param position index in out to start writing
+	 * @return the index in out after the last byte written
+	 */
+	public int encode(PointBuffer points, byte[] out, int position) {
+		return encode(points.getXArray(), points.getYArray(), 0,
+				points.size(), out, position);
+	}
+
+	/**
+	 * Decodes points from the binary form
+	 *
+	 * @param in the encoding
+	 * @param position index in in of the first byte
+	 * @param count number of points encoded
+	 * @param x receives the longitudes
+	 * @param y receives the latitudes
+	 * @param offset index in x and y of the first point
+	 * @return the index in in after the last byte read
+	 * @throws IllegalArgumentException if the encoding is truncated, or has
+	 *             a varint longer than 10 bytes
+	 */
+	public int decode(byte[] in, int position, int count, double[] x,
+			double[] y, int offset) {
+
+		long qx = 0;
+		long qy = 0;
+		int limit = in.length;
+
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+
+			/* two varints, inlined so the position needn't be returned */
+			for (int c = 0; c < 2; c++) {
+
+				long value = 0;
+				int shift = 0;
+				int b;
+				do {
+					if (position >= limit)
+						throw new IllegalArgumentException(
+								"Truncated coordinate encoding");
+					/* a long takes at most 10 bytes */
+					if (shift >= 64)
+						throw new IllegalArgumentException(
+								"Overlong coordinate encoding");
+					b = in[position++];
+					value |= (long) (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+
+				/* un-zigzag */
+				long delta = (value >>> 1) ^ -(value & 1);
+				if (c == 0)
+					qx += delta;
+				else
+					qy += delta;
+			}
+
+			x[i] = qx / mScale;
+			y[i] = qy / mScale;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Decodes points from the binary form, appending them to a buffer
+	 *
+	 * @param in the encoding
+	 * @param position index in in of the first byte
+	 * @param count number of points encoded
+	 * @param points receives the points
+	 * @return the index in in after the last byte read
+	 * @throws IllegalArgumentException if the encoding is truncated, or has
+	 *             a varint longer than 10 bytes
+	 */
+	public int decode(byte[] in, int position, int count, PointBuffer points) {
+
+		/* make room, then decode straight into the arrays */
+		int first = points.size();
+		for (int i = 0; i < count; i++)
+			points.add(0.0, 0.0);
+
+		return decode(in, position, count, points.getXArray(),
+				points.getYArray(), first);
+	}
+
+	/**
+	 * Encodes points as an encoded polyline, in ASCII
+	 *
+	 * @param x longitudes (WGS84 degrees)
+	 * @param y latitudes (WGS84 degrees)
+	 * @param offset index of the first point
+	 * @param count number of points
+	 * @param out receives the ASCII chars, room for maxPolylineLength(count)
+	 * @param position index in out to start writing
+	 * @return the index in out after the last char written
+	 */
+	public int encodePolyline(double[] x, double[] y, int offset, int count,
+			byte[] out, int position) {
+
+		long lastX = 0;
+		long lastY = 0;
+
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+
+			long qx = Math.round(x[i] * mScale);
+			long qy = Math.round(y[i] * mScale);
+
+			/* latitude first, as the format defines */
+			position = writePolylineValue(out, position, zigzag(qy - lastY));
+			position = writePolylineValue(out, position, zigzag(qx - lastX));
+
+			lastX = qx;
+			lastY = qy;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Encodes every point of a buffer as an encoded polyline
+	 *
+	 * @param points the points
+	 * @return the polyline text
+	 */
+	public String encodePolyline(PointBuffer points) {
+
+		byte[] out = new byte[maxPolylineLength(points.size())];
+		int length = encodePolyline(points.getXArray(), points.getYArray(),
+				0, points.size(), out, 0);
+
+		/* the chars are all ASCII, so this is the text as-is */
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) out[i];
+		return new String(chars);
+	}
+
+	/**
+	 * Decodes an encoded polyline held as ASCII
+	 *
+	 * @param in the ASCII chars
+	 * @param position index in in of the first char
+	 * @param end index in in after the last char
+	 * @param points receives the points
+	 * @return the number of points decoded
+	 * @throws IllegalArgumentException if the polyline is malformed
+	 */
+	public int decodePolyline(byte[] in, int position, int end,
+			PointBuffer points) {
+
+		long qx = 0;
+		long qy = 0;
+		int count = 0;
+
+		while (position < end) {
+
+			for (int c = 0; c < 2; c++) {
+
+				long value = 0;
+				int shift = 0;
+				int b;
+				do {
+					if (position >= end)
+						throw new IllegalArgumentException(
+								"Truncated polyline");
+					/* a long takes at most 13 chars */
+					if (shift >= 64)
+						throw new IllegalArgumentException(
+								"Overlong polyline value");
+					b = in[position++] - POLYLINE_OFFSET;
+					if (b < 0 || b > 0x3f)
+						throw new IllegalArgumentException(
+								"Invalid polyline char");
+					value |= (long) (b & 0x1f) << shift;
+					shift += 5;
+				} while (b >= 0x20);
+
+				long delta = (value >>> 1) ^ -(value & 1);
+				if (c == 0)
+					qy += delta;
+				else
+					qx += delta;
+			}
+
+			points.add(qx / mScale, qy / mScale);
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Decodes an encoded polyline
+	 *
+	 * @param polyline the polyline text
+	 * @param points receives the points
+	 * @return the number of points decoded
+	 * @throws IllegalArgumentException if the polyline is malformed
+	 */
+	public int decodePolyline(CharSequence polyline, PointBuffer points) {
+
+		int length = polyline.length();
+		byte[] in = new byte[length];
+		for (int i = 0; i < length; i++) {
+			char c = polyline.charAt(i);
+			/* anything outside ASCII is invalid, keep it invalid */
+			in[i] = c < 0x80 ? (byte) c : 0;
+		}
+
+		return decodePolyline(in, 0, length, points);
+	}
+
+	/**
+	 * Encodes a sequence of longs, such as fix times, as zigzag varint
+	 * differences. Steady sequences (one fix a second) take one byte each.
+	 *
+	 * @param values the values
+	 * @param offset index of the first value
+	 * @param count number of values
+	 * @param out receives the encoding, room for 10 bytes per value
+	 * @param position index in out to start writing
+	 * @return the index in out after the last byte written
+	 */
+	public static int encodeDeltas(long[] values, int offset, int count,
+			byte[] out, int position) {
+
+		long last = 0;
+
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			position = writeVarint(out, position, zigzag(values[i] - last));
+			last = values[i];
+		}
+
+		return position;
+	}
+
+	/**
+	 * Decodes a sequence written by encodeDeltas()
+	 *
+	 * @param in the encoding
+	 * @param position index in in of the first byte
+	 * @param count number of values encoded
+	 * @param values receives the values
+	 * @param offset index in values of the first value
+	 * @return the index in in after the last byte read
+	 * @throws IllegalArgumentException if the encoding is truncated, or has
+	 *             a varint longer than 10 bytes
+	 */
+	public static int decodeDeltas(byte[] in, int position, int count,
+			long[] values, int offset) {
+
+		long last = 0;
+		int limit = in.length;
+
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (position >= limit)
+					throw new IllegalArgumentException(
+							"Truncated delta encoding");
+				/* a long takes at most 10 bytes */
+				if (shift >= 64)
+					throw new IllegalArgumentException(
+							"Overlong delta encoding");
+				b = in[position++];
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+
+			last += (value >>> 1) ^ -(value & 1);
+			values[i] = last;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Maps signed to unsigned so small negative numbers stay small: 0, -1,
+	 * 1, -2 become 0, 1, 2, 3
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Writes an unsigned varint, low 7 bits first, high bit set on all but
+	 * the last byte
+	 */
+	private static int writeVarint(byte[] out, int position, long value) {
+
+		while ((value & ~0x7fL) != 0) {
+			out[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Writes a zigzagged value as polyline chars, low 5 bits first, 0x20 set
+	 * on all but the last chunk
+	 */
+	private static int writePolylineValue(byte[] out, int position,
+			long value) {
+
+		while (value >= 0x20) {
+			out[position++] = (byte) (((value & 0x1f) | 0x20) + POLYLINE_OFFSET);
+			value >>>= 5;
+		}
+		out[position++] = (byte) (value + POLYLINE_OFFSET);
+		return position;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.format;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+
+/**
+ * Units a distance can be displayed in. Miles and feet are the U.S. survey
+ * units the service reports in.
+ *
+ * @author Tom
+ *
+ */
+public enum DistanceUnit {
+
+	METERS(1.0, " meters"),
+	KILOMETERS(1000.0, " km"),
+	FEET(Ellipsoidal.METERS_PER_SURVEY_MILE / 5280.0, " feet"),
+	MILES(Ellipsoidal.METERS_PER_SURVEY_MILE, " miles"),
+	NAUTICAL_MILES(1852.0, " nmi");
+
+	/** length of one unit, meters */
+	final double meters;
+	/** text following the number, including the separating space */
+	final char[] suffix;
+
+	private DistanceUnit(double meters, String suffix) {
+		this.meters = meters;
+		this.suffix = suffix.toCharArray();
+	}
+
+	/**
+	 * @param meters a distance in meters
+	 * @return the distance in this unit
+	 */
+	public double fromMeters(double meters) {
+		return meters / this.meters;
+	}
+
+	/**
+	 * @param value a distance in this unit
+	 * @return the distance in meters
+	 */
+	public double toMeters(double value) {
+		return value * meters;
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.format;
+
+/**
+ * Formats coordinates and distances into a reusable char buffer, without
+ * allocating, for display with TextView.setText(char[], int, int).
+ *
+ * Output is the same in every locale ('.' decimal separator, ASCII digits).
+ * Values are rounded half-up to the displayed precision, and rounding
+ * carries through seconds and minutes, so 59.6 seconds shows as the next
+ * minute rather than 60 seconds.
+ *
+ * A TextView keeps a reference to the array passed to setText(char[],...),
+ * so use one formatter per view and only format again right before the next
+ * setText on that view.
+ *
+ * @author Tom
+ *
+ */
+public class TextFormatter {
+
+	/** powers of ten, for the supported decimal places */
+	private static final long[] POWERS = { 1L, 10L, 100L, 1000L, 10000L,
+			100000L, 1000000L, 10000000L, 100000000L, 1000000000L };
+
+	/** the largest magnitude printed in full, beyond this "--" is shown */
+	private static final double MAX_VALUE = 1e12;
+
+	/**
+	 * the smallest scaled magnitude that no longer rounds to a long; it
+	 * lowers MAX_VALUE at high precision (about 9.2e9 at 9 decimals)
+	 */
+	private static final double MAX_SCALED = (double) Long.MAX_VALUE;
+
+	/** speed suffixes */
+	private static final char[] MPH = " mph".toCharArray();
+	private static final char[] KMH = " km/h".toCharArray();
+
+	/** the formatted text */
+	private char[] mBuffer;
+	/** number of chars formatted */
+	private int mLength;
+
+	/**
+	 * constructor
+	 *
+	 * @param capacity initial buffer size, grown if ever needed
+	 */
+	public TextFormatter(int capacity) {
+		mBuffer = new char[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * @return the formatted text, valid up to length() (not a copy)
+	 */
+	public char[] getBuffer() {
+		return mBuffer;
+	}
+
+	/**
+	 * @return the number of chars formatted
+	 */
+	public int length() {
+		return mLength;
+	}
+
+	/**
+	 * @return a copy of the formatted text (allocates)
+	 */
+	@Override
+	public String toString() {
+		return new String(mBuffer, 0, mLength);
+	}
+
+	/**
+	 * Formats a point as hemisphere, degrees, minutes and whole seconds, for
+	 * example: N 34&deg;3'8", W 117&deg;14'40"
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @return the formatted length
+	 */
+	public int formatDms(double x, double y) {
+		return formatDms(x, y, 0);
+	}
+
+	/**
+	 * Formats a point as hemisphere, degrees, minutes and seconds
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param decimals decimal places of the seconds, 0 to 6
+	 * @return the formatted length
+	 */
+	public int formatDms(double x, double y, int decimals) {
+
+		mLength = 0;
+		appendDms(y, 'N', 'S', decimals);
+		append(',');
+		append(' ');
+		appendDms(x, 'E', 'W', decimals);
+		return mLength;
+	}
+
+	/**
+	 * Formats a point as signed decimal degrees, latitude first, for example:
+	 * 34.05223, -117.24443
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param decimals decimal places, 0 to 9
+	 * @return the formatted length
+	 */
+	public int formatDecimal(double x, double y, int decimals) {
+
+		mLength = 0;
+		appendNumber(y, decimals, false);
+		append(',');
+		append(' ');
+		appendNumber(x, decimals, false);
+		return mLength;
+	}
+
+	/**
+	 * Formats a distance in the given unit, with trailing zeros removed, for
+	 * example: 12.5 miles
+	 *
+	 * @param meters the distance, in meters
+	 * @param unit the unit to display
+	 * @param decimals the most decimal places shown, 0 to 9
+	 * @return the formatted length
+	 */
+	public int formatDistance(double meters, DistanceUnit unit, int decimals) {
+
+		mLength = 0;
+		appendNumber(unit.fromMeters(meters), decimals, true);
+		append(unit.suffix);
+		return mLength;
+	}
+
+	/**
+	 * Formats a distance with up to two decimals, in miles, or in feet when
+	 * less than a mile (kilometers and meters if metric)
+	 *
+	 * @param meters the distance, in meters
+	 * @param metric true for metric units
+	 * @return the formatted length
+	 */
+	public int formatDistance(double meters, boolean metric) {
+
+		DistanceUnit large = metric ? DistanceUnit.KILOMETERS
+				: DistanceUnit.MILES;
+		DistanceUnit small = metric ? DistanceUnit.METERS : DistanceUnit.FEET;
+
+		if (meters == 0.0 || Math.abs(meters) >= large.meters)
+			return formatDistance(meters, large, 2);
+		return formatDistance(meters, small, 2);
+	}
+
+	/**
+	 * Formats a speed and a time to go, for example: 12.5 mph, 1:04:09.
+	 * Either shows as "--" when NaN.
+	 *
+	 * @param metersPerSecond the speed, meters/second
+	 * @param seconds the time to go, seconds
+	 * @param metric true for km/h rather than mph
+	 * @return the formatted length
+	 */
+	public int formatProgress(double metersPerSecond, double seconds,
+			boolean metric) {
+
+		DistanceUnit unit = metric ? DistanceUnit.KILOMETERS
+				: DistanceUnit.MILES;
+
+		mLength = 0;
+		appendNumber(unit.fromMeters(metersPerSecond * 3600.0), 1, true);
+		append(metric ? KMH : MPH);
+		append(',');
+		append(' ');
+
+		if (!(seconds >= 0.0) || seconds >= MAX_VALUE) {
+			append('-');
+			append('-');
+			return mLength;
+		}
+
+		/* hours:minutes:seconds, rounded to the second */
+		long total = Math.round(seconds);
+		appendLong(total / 3600);
+		append(':');
+		appendDigits(total / 60 % 60, 2);
+		append(':');
+		appendDigits(total % 60, 2);
+		return mLength;
+	}
+
+	/**
+	 * Formats named distances as a list, for example: home 0.25 miles, work
+	 * 3 miles
+	 *
+	 * @param names the names
+	 * @param meters the distances, in meters
+	 * @param count the number of entries to format
+	 * @param metric true for metric units
+	 * @return the formatted length
+	 */
+	public int formatNamedDistances(String[] names, double[] meters,
+			int count, boolean metric) {
+
+		DistanceUnit large = metric ? DistanceUnit.KILOMETERS
+				: DistanceUnit.MILES;
+		DistanceUnit small = metric ? DistanceUnit.METERS : DistanceUnit.FEET;
+
+		mLength = 0;
+		for (int i = 0; i < count; i++) {
+
+			if (i > 0) {
+				append(',');
+				append(' ');
+			}
+			append(names[i]);
+			append(' ');
+
+			DistanceUnit unit = meters[i] == 0.0
+					|| Math.abs(meters[i]) >= large.meters ? large : small;
+			appendNumber(unit.fromMeters(meters[i]), 2, true);
+			append(unit.suffix);
+		}
+		return mLength;
+	}
+
+	/**
+	 * Appends one coordinate: hemisphere, degrees, minutes, seconds
+	 */
+	private void appendDms(double degrees, char positive, char negative,
+			int decimals) {
+
+		append(degrees >= 0.0 ? positive : negative);
+		append(' ');
+
+		if (Double.isNaN(degrees) || Double.isInfinite(degrees)) {
+			append('-');
+			append('-');
+			return;
+		}
+
+		/*
+		 * round once, in units of the last displayed digit of the seconds,
+		 * then split; carries into minutes and degrees come for free
+		 */
+		long scale = POWERS[decimals];
+		double scaled = Math.abs(degrees) * 3600.0 * scale;
+		if (scaled >= MAX_SCALED) {
+			append('-');
+			append('-');
+			return;
+		}
+		long total = Math.round(scaled);
+
+		long fraction = total % scale;
+		total /= scale;
+		long seconds = total % 60;
+		total /= 60;
+		long minutes = total % 60;
+		long whole = total / 60;
+
+		appendLong(whole);
+		append('\u00B0');
+		appendLong(minutes);
+		append('\'');
+		appendLong(seconds);
+		if (decimals > 0) {
+			append('.');
+			appendDigits(fraction, decimals);
+		}
+		append('"');
+	}
+
+	/**
+	 * Appends a number rounded to the given decimal places
+	 *
+	 * @param trim true to drop trailing fractional zeros (and the point)
+	 */
+	private void appendNumber(double value, int decimals, boolean trim) {
+
+		long scale = POWERS[decimals];
+		double scaled = Math.abs(value) * scale;
+
+		if (Double.isNaN(value) || Math.abs(value) >= MAX_VALUE
+				|| scaled >= MAX_SCALED) {
+			append('-');
+			append('-');
+			return;
+		}
+
+		long total = Math.round(scaled);
+
+		if (value < 0.0 && total != 0)
+			append('-');
+
+		appendLong(total / scale);
+
+		long fraction = total % scale;
+		if (trim) {
+			while (decimals > 0 && fraction % 10 == 0) {
+				fraction /= 10;
+				decimals--;
+			}
+		}
+
+		if (decimals > 0) {
+			append('.');
+			appendDigits(fraction, decimals);
+		}
+	}
+
+	/**
+	 * Appends a non-negative number with no leading zeros
+	 */
+	private void appendLong(long value) {
+
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10)
+			digits++;
+
+		appendDigits(value, digits);
+	}
+
+	/**
+	 * Appends the low digits of a non-negative number, zero padded
+	 */
+	private void appendDigits(long value, int digits) {
+
+		ensureCapacity(mLength + digits);
+
+		for (int i = mLength + digits - 1; i >= mLength; i--) {
+			mBuffer[i] = (char) ('0' + (int) (value % 10));
+			value /= 10;
+		}
+		mLength += digits;
+	}
+
+	private void append(char c) {
+		ensureCapacity(mLength + 1);
+		mBuffer[mLength++] = c;
+	}
+
+	private void append(char[] chars) {
+		ensureCapacity(mLength + chars.length);
+		System.arraycopy(chars, 0, mBuffer, mLength, chars.length);
+		mLength += chars.length;
+	}
+
+	private void append(String text) {
+		int length = text.length();
+		ensureCapacity(mLength + length);
+		text.getChars(0, length, mBuffer, mLength);
+		mLength += length;
+	}
+
+	private void ensureCapacity(int capacity) {
+
+		if (capacity <= mBuffer.length)
+			return;
+
+		char[] buffer = new char[Math.max(capacity, mBuffer.length * 2)];
+		System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+		mBuffer = buffer;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.geo;
+
+/**
+ * Keeps the k points of a PointIndex closest to a moving location, such as
+ * the current gps fix.
+ *
+ * Each full query fetches a few more candidates than needed. While the
+ * location moves less than the gap between the k-th candidate and the
+ * farthest one, no point outside the candidates can have become one of the
+ * k closest (triangle inequality), so the update only re-ranks the
+ * candidates instead of searching the tree.
+ *
+ * @author Tom
+ *
+ */
+public class NearestTracker {
+
+	/** the index being tracked */
+	private PointIndex mIndex;
+	/** number of points wanted */
+	private int mK;
+
+	/** candidate count of the last full query */
+	private int mCandidates;
+	/** candidate ids, closest first after every update */
+	private int[] mIds;
+	/** candidate unit vectors */
+	private double[] mVx;
+	private double[] mVy;
+	private double[] mVz;
+	/** candidate squared chord distances from the current location */
+	private double[] mChord2;
+	/** candidate distances from the current location, meters */
+	private double[] mMeters;
+
+	/** unit vector of the last full query location */
+	private double mQueryVx;
+	private double mQueryVy;
+	private double mQueryVz;
+	/** distance to the farthest candidate from the query location, meters */
+	private double mRadius;
+	/** index mod count at the last full query */
+	private int mModCount;
+	/** false until the first full query */
+	private boolean mValid;
+
+	/** updates answered without searching the index */
+	private int mHits;
+	/** updates that searched the index */
+	private int mMisses;
+
+	/**
+	 * constructor
+	 *
+	 * @param index the index to track
+	 * @param k the number of closest points to keep
+	 */
+	public NearestTracker(PointIndex index, int k) {
+
+		mIndex = index;
+		mK = k;
+
+		int capacity = 2 * k + 8;
+		mIds = new int[capacity];
+		mVx = new double[capacity];
+		mVy = new double[capacity];
+		mVz = new double[capacity];
+		mChord2 = new double[capacity];
+		mMeters = new double[capacity];
+	}
+
+	/**
+	 * Moves the tracked location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @return the number of closest points now available, k unless the index
+	 *         has fewer points
+	 */
+	public int update(double x, double y) {
+
+		if (mValid && mIndex.getModCount() == mModCount) {
+
+			double lambda = Math.toRadians(x);
+			double phi = Math.toRadians(y);
+			double cosPhi = Math.cos(phi);
+			double qx = cosPhi * Math.cos(lambda);
+			double qy = cosPhi * Math.sin(lambda);
+			double qz = Math.sin(phi);
+
+			double moved = PointIndex.chordToMeters(chord2(qx, qy, qz,
+					mQueryVx, mQueryVy, mQueryVz));
+
+			/* rank by chord, only the results need converting to meters */
+			for (int i = 0; i < mCandidates; i++)
+				mChord2[i] = chord2(qx, qy, qz, mVx[i], mVy[i], mVz[i]);
+			sortCandidates();
+
+			/*
+			 * points outside the candidates are at least mRadius - moved
+			 * away (less a millimeter for rounding). If every candidate was
+			 * fetched, there are no such points.
+			 */
+			int found = Math.min(mK, mCandidates);
+			for (int i = 0; i < found; i++)
+				mMeters[i] = PointIndex.chordToMeters(mChord2[i]);
+
+			boolean complete = mCandidates < mIds.length;
+			if (found == 0 || complete
+					|| mMeters[found - 1] <= mRadius - moved - 0.001) {
+				mHits++;
+				return found;
+			}
+		}
+
+		mMisses++;
+		return query(x, y);
+	}
+
+	/**
+	 * @return the number of closest points wanted
+	 */
+	public int getK() {
+		return mK;
+	}
+
+	/**
+	 * @return the number of closest points available
+	 */
+	public int size() {
+		return Math.min(mK, mCandidates);
+	}
+
+	/**
+	 * @param i rank, 0 is the closest
+	 * @return the point id
+	 */
+	public int getId(int i) {
+		return mIds[i];
+	}
+
+	/**
+	 * @param i rank, 0 is the closest
+	 * @return the great-circle distance in meters (mean-radius sphere)
+	 */
+	public double getMeters(int i) {
+		return mMeters[i];
+	}
+
+	/**
+	 * @return updates answered without searching the index
+	 */
+	public int getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return updates that had to search the index
+	 */
+	public int getMisses() {
+		return mMisses;
+	}
+
+	private int query(double x, double y) {
+
+		mCandidates = mIndex.nearest(x, y, mIds.length, mIds, mMeters);
+
+		for (int i = 0; i < mCandidates; i++) {
+			setUnitVector(i, mIndex.getX(mIds[i]), mIndex.getY(mIds[i]));
+		}
+
+		double lambda = Math.toRadians(x);
+		double phi = Math.toRadians(y);
+		double cosPhi = Math.cos(phi);
+		mQueryVx = cosPhi * Math.cos(lambda);
+		mQueryVy = cosPhi * Math.sin(lambda);
+		mQueryVz = Math.sin(phi);
+
+		mRadius = mCandidates > 0 ? mMeters[mCandidates - 1] : 0.0;
+		mModCount = mIndex.getModCount();
+		mValid = true;
+
+		return Math.min(mK, mCandidates);
+	}
+
+	private void setUnitVector(int i, double x, double y) {
+		double lambda = Math.toRadians(x);
+		double phi = Math.toRadians(y);
+		double cosPhi = Math.cos(phi);
+		mVx[i] = cosPhi * Math.cos(lambda);
+		mVy[i] = cosPhi * Math.sin(lambda);
+		mVz[i] = Math.sin(phi);
+	}
+
+	private static double chord2(double ax, double ay, double az, double bx,
+			double by, double bz) {
+		double dx = ax - bx;
+		double dy = ay - by;
+		double dz = az - bz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Insertion sort by distance, the candidates are few and nearly sorted
+	 * already from the previous update
+	 */
+	private void sortCandidates() {
+
+		for (int i = 1; i < mCandidates; i++) {
+
+			double chord2 = mChord2[i];
+			if (mChord2[i - 1] <= chord2)
+				continue;
+
+			int id = mIds[i];
+			double vx = mVx[i];
+			double vy = mVy[i];
+			double vz = mVz[i];
+
+			int j = i - 1;
+			while (j >= 0 && mChord2[j] > chord2) {
+				mChord2[j + 1] = mChord2[j];
+				mIds[j + 1] = mIds[j];
+				mVx[j + 1] = mVx[j];
+				mVy[j + 1] = mVy[j];
+				mVz[j + 1] = mVz[j];
+				j--;
+			}
+
+			mChord2[j + 1] = chord2;
+			mIds[j + 1] = id;
+			mVx[j + 1] = vx;
+			mVy[j + 1] = vy;
+			mVz[j + 1] = vz;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.geo;
+
+/**
+ * An ordered, growable sequence of geographic points held as two primitive
+ * arrays, for routes and other bulk operations where a Point per vertex
+ * would be wasteful.
+ *
+ * x = longitude and y = latitude, WGS84 degrees, as in service.Point.
+ *
+ * @author Tom
+ *
+ */
+public class PointBuffer {
+
+	/** number of points */
+	private int mSize;
+	/** longitudes */
+	private double[] mX;
+	/** latitudes */
+	private double[] mY;
+
+	/**
+	 * constructor
+	 *
+	 * @param capacity initial number of points
+	 */
+	public PointBuffer(int capacity) {
+		capacity = Math.max(capacity, 4);
+		mX = new double[capacity];
+		mY = new double[capacity];
+	}
+
+	/**
+	 * Appends a point
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 */
+	public void add(double x, double y) {
+
+		if (mSize == mX.length) {
+			int capacity = mX.length * 2;
+
+			double[] newX = new double[capacity];
+			System.arraycopy(mX, 0, newX, 0, mSize);
+			mX = newX;
+
+			double[] newY = new double[capacity];
+			System.arraycopy(mY, 0, newY, 0, mSize);
+			mY = newY;
+		}
+
+		mX[mSize] = x;
+		mY[mSize] = y;
+		mSize++;
+	}
+
+	/**
+	 * Removes every point, keeping the storage
+	 */
+	public void clear() {
+		mSize = 0;
+	}
+
+	/**
+	 * @return the number of points
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index the point index
+	 * @return the point longitude
+	 */
+	public double getX(int index) {
+		return mX[index];
+	}
+
+	/**
+	 * @param index the point index
+	 * @return the point latitude
+	 */
+	public double getY(int index) {
+		return mY[index];
+	}
+
+	/**
+	 * @return the longitude array, valid up to size() (not a copy)
+	 */
+	public double[] getXArray() {
+		return mX;
+	}
+
+	/**
+	 * @return the latitude array, valid up to size() (not a copy)
+	 */
+	public double[] getYArray() {
+		return mY;
+	}
+}
@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.geo;
+
+import java.util.HashMap;
+
+/**
+ * Spatial index of geographic points for nearest-neighbor and radius
+ * queries.
+ *
+ * Points are stored as unit vectors in a 3-d k-d tree. Straight-line (chord)
+ * distance between unit vectors increases with great-circle distance, so the
+ * results are exact on the sphere with no special cases at the poles or the
+ * date line.
+ *
+ * Points are identified by a caller-chosen int id. Inserts and removes are
+ * incremental; removed points are marked and dropped at the next rebuild,
+ * which also happens automatically when the tree gets too deep.
+ *
+ * Not thread safe: queries reuse internal scratch arrays.
+ *
+ * @author Tom
+ *
+ */
+public class PointIndex {
+
+	/** no node */
+	private static final int NONE = -1;
+
+	/** node count, including removed nodes */
+	private int mNodes;
+	/** live point count */
+	private int mSize;
+	/** root node */
+	private int mRoot = NONE;
+
+	/** node unit vectors */
+	private double[] mVx;
+	private double[] mVy;
+	private double[] mVz;
+	/** node coordinates in degrees, kept for rebuilds and callers */
+	private double[] mX;
+	private double[] mY;
+	/** node ids */
+	private int[] mIds;
+	/** node children */
+	private int[] mLeft;
+	private int[] mRight;
+	/** node split axis (0, 1, 2) */
+	private byte[] mAxis;
+	/** node removed */
+	private boolean[] mRemoved;
+
+	/** live id to node */
+	private HashMap<Integer, Integer> mNodeOfId = new HashMap<Integer, Integer>();
+
+	/** deepest node in the tree */
+	private int mMaxDepth;
+	/** inserts since the last rebuild */
+	private int mInserts;
+	/** incremented on every change, lets trackers detect a stale result */
+	private int mModCount;
+
+	/* query scratch, reused to keep queries allocation free */
+	private int[] mStack = new int[64];
+	private double[] mStackBound = new double[64];
+	private int[] mHeapNode = new int[16];
+	private double[] mHeapDist = new double[16];
+
+	/**
+	 * constructor
+	 *
+	 * @param capacity expected number of points
+	 */
+	public PointIndex(int capacity) {
+		allocate(Math.max(capacity, 16));
+	}
+
+	/**
+	 * @return the number of points in the index
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return a count that changes whenever the index changes
+	 */
+	public int getModCount() {
+		return mModCount;
+	}
+
+	/**
+	 * Adds a point, or moves it if the id is already in the index
+	 *
+	 * @param id identifies the point
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 */
+	public void insert(int id, double x, double y) {
+
+		remove(id);
+
+		if (mNodes == mIds.length)
+			grow();
+
+		int node = mNodes++;
+		setNode(node, id, x, y);
+		mNodeOfId.put(Integer.valueOf(id), Integer.valueOf(node));
+		mSize++;
+		mInserts++;
+		mModCount++;
+
+		if (mRoot == NONE) {
+			mRoot = node;
+			mAxis[node] = 0;
+			mMaxDepth = 1;
+			return;
+		}
+
+		/* descend to the leaf position for the new point */
+		int parent = mRoot;
+		int depth = 1;
+		while (true) {
+			depth++;
+			int axis = mAxis[parent];
+			if (coordinate(node, axis) < coordinate(parent, axis)) {
+				if (mLeft[parent] == NONE) {
+					mLeft[parent] = node;
+					break;
+				}
+				parent = mLeft[parent];
+			} else {
+				if (mRight[parent] == NONE) {
+					mRight[parent] = node;
+					break;
+				}
+				parent = mRight[parent];
+			}
+		}
+
+		mAxis[node] = (byte) ((mAxis[parent] + 1) % 3);
+
+		if (depth > mMaxDepth) {
+			mMaxDepth = depth;
+			/*
+			 * keep queries logarithmic, tolerating some imbalance and
+			 * waiting for enough inserts to pay for the rebuild
+			 */
+			if (mMaxDepth > 2 * log2(mSize) + 16 && mInserts > mSize / 8)
+				rebuild();
+		}
+	}
+
+	/**
+	 * Removes a point
+	 *
+	 * @param id identifies the point
+	 * @return true if the point was in the index
+	 */
+	public boolean remove(int id) {
+
+		Integer node = mNodeOfId.remove(Integer.valueOf(id));
+		if (node == null)
+			return false;
+
+		mRemoved[node.intValue()] = true;
+		mSize--;
+		mModCount++;
+
+		/* reclaim removed nodes once they're the majority */
+		if (mNodes - mSize > mSize + 16)
+			rebuild();
+
+		return true;
+	}
+
+	/**
+	 * Removes every point
+	 */
+	public void clear() {
+		mNodes = 0;
+		mSize = 0;
+		mRoot = NONE;
+		mMaxDepth = 0;
+		mInserts = 0;
+		mNodeOfId.clear();
+		mModCount++;
+	}
+
+	/**
+	 * Rebuilds a balanced tree from the live points. Called automatically,
+	 * but worth calling after a bulk load of points in spatial order.
+	 */
+	public void rebuild() {
+
+		/* compact the live nodes to the front */
+		int live = 0;
+		for (int node = 0; node < mNodes; node++) {
+			if (!mRemoved[node]) {
+				if (live != node)
+					copyNode(node, live);
+				mRemoved[live] = false;
+				live++;
+			}
+		}
+		mNodes = live;
+
+		mMaxDepth = 0;
+		mInserts = 0;
+		mRoot = build(0, live, 0, 1);
+
+		/* nodes moved, re-map the ids */
+		for (int node = 0; node < live; node++)
+			mNodeOfId.put(Integer.valueOf(mIds[node]), Integer.valueOf(node));
+	}
+
+	/**
+	 * Finds the k points closest to a location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param k number of points wanted
+	 * @param ids receives the point ids, closest first (length >= k)
+	 * @param meters receives the great-circle distances in meters on the
+	 *            mean-radius sphere, may be null
+	 * @return the number of points found, less than k only if the index has
+	 *         fewer points
+	 */
+	public int nearest(double x, double y, int k, int[] ids, double[] meters) {
+
+		int count = search(x, y, k, Double.POSITIVE_INFINITY);
+		return drainHeap(count, ids, meters);
+	}
+
+	/**
+	 * Finds the points within a distance of a location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param radius the distance in meters (great-circle, mean-radius sphere)
+	 * @param ids receives the point ids, closest first. Only the closest
+	 *            ids.length points are returned.
+	 * @param meters receives the distances in meters, may be null
+	 * @return the number of points returned
+	 */
+	public int within(double x, double y, double radius, int[] ids,
+			double[] meters) {
+
+		double angle = radius / Spherical.EARTH_RADIUS;
+		double chord = angle >= Math.PI ? 2.0 : 2.0 * Math.sin(angle * 0.5);
+
+		/* a hair of slack so points exactly on the radius aren't lost */
+		int count = search(x, y, ids.length, chord * chord * (1.0 + 1e-12));
+		return drainHeap(count, ids, meters);
+	}
+
+	/**
+	 * @param id identifies the point
+	 * @return true if the point is in the index
+	 */
+	public boolean contains(int id) {
+		return mNodeOfId.containsKey(Integer.valueOf(id));
+	}
+
+	/**
+	 * @param id identifies the point
+	 * @return the point longitude, NaN if not in the index
+	 */
+	public double getX(int id) {
+		Integer node = mNodeOfId.get(Integer.valueOf(id));
+		return node == null ? Double.NaN : mX[node.intValue()];
+	}
+
+	/**
+	 * @param id identifies the point
+	 * @return the point latitude, NaN if not in the index
+	 */
+	public double getY(int id) {
+		Integer node = mNodeOfId.get(Integer.valueOf(id));
+		return node == null ? Double.NaN : mY[node.intValue()];
+	}
+
+	/**
+	 * Converts a chord length between unit vectors to a great-circle
+	 * distance
+	 *
+	 * @param chord2 the squared chord length
+	 * @return the distance in meters on the mean-radius sphere
+	 */
+	static double chordToMeters(double chord2) {
+		return Spherical.chordToDistance(Math.sqrt(chord2));
+	}
+
+	/**
+	 * Collects the k closest live nodes within the bound into the scratch
+	 * max-heap
+	 *
+	 * @return the number of nodes in the heap
+	 */
+	private int search(double x, double y, int k, double bound2) {
+
+		if (k <= 0 || mRoot == NONE)
+			return 0;
+
+		if (mHeapNode.length < k) {
+			mHeapNode = new int[k];
+			mHeapDist = new double[k];
+		}
+
+		double lambda = Math.toRadians(x);
+		double phi = Math.toRadians(y);
+		double cosPhi = Math.cos(phi);
+		double qx = cosPhi * Math.cos(lambda);
+		double qy = cosPhi * Math.sin(lambda);
+		double qz = Math.sin(phi);
+
+		int count = 0;
+		/* the distance to beat: the bound until the heap is full */
+		double worst = bound2;
+
+		int top = 0;
+		mStack[top] = mRoot;
+		mStackBound[top] = 0.0;
+		top++;
+
+		while (top > 0) {
+
+			top--;
+			int node = mStack[top];
+
+			/* the far side of a split may have become too far to matter */
+			if (mStackBound[top] > worst)
+				continue;
+
+			while (node != NONE) {
+
+				double dx = mVx[node] - qx;
+				double dy = mVy[node] - qy;
+				double dz = mVz[node] - qz;
+				double d2 = dx * dx + dy * dy + dz * dz;
+
+				if (!mRemoved[node] && d2 <= worst) {
+					if (count < k) {
+						heapPush(count++, node, d2);
+						if (count == k)
+							worst = Math.min(bound2, mHeapDist[0]);
+					} else {
+						heapReplaceTop(count, node, d2);
+						worst = Math.min(bound2, mHeapDist[0]);
+					}
+				}
+
+				int axis = mAxis[node];
+				double diff = (axis == 0 ? qx : axis == 1 ? qy : qz)
+						- coordinate(node, axis);
+				int near = diff < 0.0 ? mLeft[node] : mRight[node];
+				int far = diff < 0.0 ? mRight[node] : mLeft[node];
+
+				double diff2 = diff * diff;
+				if (far != NONE && diff2 <= worst) {
+					if (top == mStack.length)
+						growStack();
+					mStack[top] = far;
+					mStackBound[top] = diff2;
+					top++;
+				}
+
+				node = near;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Empties the scratch heap into the output arrays, closest first
+	 */
+	private int drainHeap(int count, int[] ids, double[] meters) {
+
+		for (int n = count; n > 0; n--) {
+			int node = mHeapNode[0];
+			double d2 = mHeapDist[0];
+			ids[n - 1] = mIds[node];
+			if (meters != null)
+				meters[n - 1] = chordToMeters(d2);
+			/* move the last element to the top and restore the heap */
+			heapRemoveTop(n);
+		}
+		return count;
+	}
+
+	private void heapPush(int count, int node, double d2) {
+		int i = count;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (mHeapDist[parent] >= d2)
+				break;
+			mHeapNode[i] = mHeapNode[parent];
+			mHeapDist[i] = mHeapDist[parent];
+			i = parent;
+		}
+		mHeapNode[i] = node;
+		mHeapDist[i] = d2;
+	}
+
+	private void heapReplaceTop(int count, int node, double d2) {
+		siftDown(0, count, node, d2);
+	}
+
+	private void heapRemoveTop(int count) {
+		int last = count - 1;
+		if (last > 0)
+			siftDown(0, last, mHeapNode[last], mHeapDist[last]);
+	}
+
+	private void siftDown(int i, int count, int node, double d2) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= count)
+				break;
+			if (child + 1 < count && mHeapDist[child + 1] > mHeapDist[child])
+				child++;
+			if (mHeapDist[child] <= d2)
+				break;
+			mHeapNode[i] = mHeapNode[child];
+			mHeapDist[i] = mHeapDist[child];
+			i = child;
+		}
+		mHeapNode[i] = node;
+		mHeapDist[i] = d2;
+	}
+
+	/**
+	 * Builds a balanced subtree from nodes [from, to), returns its root
+	 */
+	private int build(int from, int to, int axis, int depth) {
+
+		if (from >= to)
+			return NONE;
+
+		if (depth > mMaxDepth)
+			mMaxDepth = depth;
+
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, axis);
+
+		mAxis[mid] = (byte) axis;
+		int next = (axis + 1) % 3;
+		mLeft[mid] = build(from, mid, next, depth + 1);
+		mRight[mid] = build(mid + 1, to, next, depth + 1);
+		return mid;
+	}
+
+	/**
+	 * Quickselect: puts the node with rank k (on the axis) at position k,
+	 * smaller before and larger after
+	 */
+	private void select(int left, int right, int k, int axis) {
+
+		while (right > left) {
+
+			double pivot = coordinate((left + right) >>> 1, axis);
+			int i = left;
+			int j = right;
+
+			while (i <= j) {
+				while (coordinate(i, axis) < pivot)
+					i++;
+				while (coordinate(j, axis) > pivot)
+					j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int a, int b) {
+
+		int idA = mIds[a];
+		double xA = mX[a];
+		double yA = mY[a];
+		double vxA = mVx[a];
+		double vyA = mVy[a];
+		double vzA = mVz[a];
+
+		copyNode(b, a);
+
+		mIds[b] = idA;
+		mX[b] = xA;
+		mY[b] = yA;
+		mVx[b] = vxA;
+		mVy[b] = vyA;
+		mVz[b] = vzA;
+	}
+
+	private void copyNode(int from, int to) {
+		mIds[to] = mIds[from];
+		mX[to] = mX[from];
+		mY[to] = mY[from];
+		mVx[to] = mVx[from];
+		mVy[to] = mVy[from];
+		mVz[to] = mVz[from];
+	}
+
+	private void setNode(int node, int id, double x, double y) {
+
+		double lambda = Math.toRadians(x);
+		double phi = Math.toRadians(y);
+		double cosPhi = Math.cos(phi);
+
+		mIds[node] = id;
+		mX[node] = x;
+		mY[node] = y;
+		mVx[node] = cosPhi * Math.cos(lambda);
+		mVy[node] = cosPhi * Math.sin(lambda);
+		mVz[node] = Math.sin(phi);
+		mLeft[node] = NONE;
+		mRight[node] = NONE;
+		mRemoved[node] = false;
+	}
+
+	private double coordinate(int node, int axis) {
+		return axis == 0 ? mVx[node] : axis == 1 ? mVy[node] : mVz[node];
+	}
+
+	private static int log2(int n) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(n, 1));
+	}
+
+	private void allocate(int capacity) {
+		mVx = new double[capacity];
+		mVy = new double[capacity];
+		mVz = new double[capacity];
+		mX = new double[capacity];
+		mY = new double[capacity];
+		mIds = new int[capacity];
+		mLeft = new int[capacity];
+		mRight = new int[capacity];
+		mAxis = new byte[capacity];
+		mRemoved = new boolean[capacity];
+	}
+
+	private void grow() {
+
+		double[] vx = mVx, vy = mVy, vz = mVz, x = mX, y = mY;
+		int[] ids = mIds, left = mLeft, right = mRight;
+		byte[] axis = mAxis;
+		boolean[] removed = mRemoved;
+
+		allocate(mIds.length * 2);
+
+		System.arraycopy(vx, 0, mVx, 0, mNodes);
+		System.arraycopy(vy, 0, mVy, 0, mNodes);
+		System.arraycopy(vz, 0, mVz, 0, mNodes);
+		System.arraycopy(x, 0, mX, 0, mNodes);
+		System.arraycopy(y, 0, mY, 0, mNodes);
+		System.arraycopy(ids, 0, mIds, 0, mNodes);
+		System.arraycopy(left, 0, mLeft, 0, mNodes);
+		System.arraycopy(right, 0, mRight, 0, mNodes);
+		System.arraycopy(axis, 0, mAxis, 0, mNodes);
+		System.arraycopy(removed, 0, mRemoved, 0, mNodes);
+	}
+
+	private void growStack() {
+
+		int[] stack = new int[mStack.length * 2];
+		System.arraycopy(mStack, 0, stack, 0, mStack.length);
+		mStack = stack;
+
+		double[] bound = new double[mStackBound.length * 2];
+		System.arraycopy(mStackBound, 0, bound, 0, mStackBound.length);
+		mStackBound = bound;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.geo;
+
+/**
+ * Geodesic area and perimeter of polygons on the WGS84 ellipsoid, computed
+ * locally instead of with the GeometryServer areasAndLengths operation.
+ *
+ * Polygons use the ArcGIS layout: one or more rings of vertices in shared
+ * coordinate arrays, with parts[r] the index of the first vertex of ring r
+ * and parts[ringCount] one past the last vertex. Rings need not repeat the
+ * first vertex at the end. Clockwise rings are exterior and count positive,
+ * counter-clockwise rings are holes and count negative, so holes and
+ * multi-part polygons need no special handling.
+ *
+ * Area: latitudes are mapped to authalic (equal-area) latitudes, and the
+ * ring's spherical excess on the authalic sphere is summed edge by edge with
+ * the tangent half-angle form of the trapezoid excess, which stays accurate
+ * for tiny and for very large polygons and across the date line. A ring
+ * around a pole splits the earth into two sides that both hold a pole; it is
+ * taken to enclose the side smaller than a hemisphere, positive if that side
+ * is on its right (clockwise) and negative if on its left. Perimeter:
+ * Ellipsoidal leg lengths.
+ *
+ * The remaining difference from the ellipsoidal geodesic polygon comes from
+ * treating each edge as a great circle on the authalic sphere. It grows with
+ * edge length: under 1e-6 of the area for edges up to 100 km, about 2e-5 at
+ * 1000 km and 1e-4 at 2000 km. Densify longer edges if that matters.
+ *
+ * Stateless and allocation free, so polygons can be measured on any number
+ * of threads at once.
+ *
+ * @author Tom
+ *
+ */
+public final class PolygonArea {
+
+	/** WGS84 first eccentricity squared */
+	private static final double E2 = Ellipsoidal.F * (2.0 - Ellipsoidal.F);
+
+	/** authalic radius squared, square meters */
+	private static final double RQ2;
+
+	/* authalic latitude series coefficients, to e^6 */
+	private static final double B2 = E2 / 3.0 + 31.0 * E2 * E2 / 180.0
+			+ 517.0 * E2 * E2 * E2 / 5040.0;
+	private static final double B4 = 23.0 * E2 * E2 / 360.0 + 251.0 * E2
+			* E2 * E2 / 3780.0;
+	private static final double B6 = 761.0 * E2 * E2 * E2 / 45360.0;
+
+	static {
+		double e = Math.sqrt(E2);
+		double qp = 1.0 - (1.0 - E2) / (2.0 * e)
+				* Math.log((1.0 - e) / (1.0 + e));
+		RQ2 = Ellipsoidal.A * Ellipsoidal.A * qp * 0.5;
+	}
+
+	private PolygonArea() {
+	}
+
+	/**
+	 * @param x vertex longitudes (WGS84 degrees)
+	 * @param y vertex latitudes (WGS84 degrees)
+	 * @param parts ring start indexes, plus the end index (length ringCount +
+	 *            1)
+	 * @param ringCount number of rings
+	 * @return the area in square meters, exterior rings less holes.
+	 *         Negative if the exterior rings are counter-clockwise.
+	 */
+	public static double area(double[] x, double[] y, int[] parts,
+			int ringCount) {
+
+		double excess = 0.0;
+		for (int r = 0; r < ringCount; r++)
+			excess += ringExcess(x, y, parts[r], parts[r + 1]);
+
+		return excess * RQ2;
+	}
+
+	/**
+	 * @param x vertex longitudes (WGS84 degrees)
+	 * @param y vertex latitudes (WGS84 degrees)
+	 * @param parts ring start indexes, plus the end index (length ringCount +
+	 *            1)
+	 * @param ringCount number of rings
+	 * @return the total length of every ring, including each closing edge,
+	 *         in meters
+	 */
+	public static double perimeter(double[] x, double[] y, int[] parts,
+			int ringCount) {
+
+		double total = 0.0;
+
+		for (int r = 0; r < ringCount; r++) {
+
+			int first = parts[r];
+			int last = parts[r + 1] - 1;
+			if (last <= first)
+				continue;
+
+			total += Ellipsoidal.measure(x, y, first, last - first + 1, null);
+			total += Ellipsoidal.distance(x[last], y[last], x[first], y[first]);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Area of a single-ring polygon
+	 *
+	 * @param ring the ring vertices
+	 * @return the area in square meters, positive if clockwise
+	 */
+	public static double area(PointBuffer ring) {
+		return ringExcess(ring.getXArray(), ring.getYArray(), 0, ring.size())
+				* RQ2;
+	}
+
+	/**
+	 * Perimeter of a single-ring polygon
+	 *
+	 * @param ring the ring vertices
+	 * @return the length including the closing edge, in meters
+	 */
+	public static double perimeter(PointBuffer ring) {
+
+		int count = ring.size();
+		if (count < 2)
+			return 0.0;
+
+		double[] x = ring.getXArray();
+		double[] y = ring.getYArray();
+		return Ellipsoidal.measure(x, y, 0, count, null)
+				+ Ellipsoidal.distance(x[count - 1], y[count - 1], x[0], y[0]);
+	}
+
+	/**
+	 * Signed spherical excess of one ring on the unit authalic sphere,
+	 * positive for clockwise rings
+	 */
+	private static double ringExcess(double[] x, double[] y, int first,
+			int end) {
+
+		if (end - first < 3)
+			return 0.0;
+
+		double sum = 0.0;
+		/* net change of longitude around the ring */
+		double turned = 0.0;
+
+		/* start from the closing edge, last vertex to first */
+		double lambda1 = Math.toRadians(x[end - 1]);
+		double t1 = tanHalfAuthalic(y[end - 1]);
+
+		for (int i = first; i < end; i++) {
+
+			double lambda2 = Math.toRadians(x[i]);
+			double t2 = tanHalfAuthalic(y[i]);
+
+			/* the shorter way around, so date line crossings work */
+			double dLambda = lambda2 - lambda1;
+			if (dLambda > Math.PI)
+				dLambda -= 2.0 * Math.PI;
+			else if (dLambda < -Math.PI)
+				dLambda += 2.0 * Math.PI;
+			turned += dLambda;
+
+			/*
+			 * excess of the triangle between the edge and the pole, with
+			 * tan(E/2) = tan(dLambda/2) (t1 + t2) / (1 + t1 t2)
+			 */
+			sum += 2.0 * Math.atan2(Math.tan(dLambda * 0.5) * (t1 + t2),
+					1.0 + t1 * t2);
+
+			lambda1 = lambda2;
+			t1 = t2;
+		}
+
+		/*
+		 * edges walked eastward, with the ring below them, sum positive. The
+		 * sum is measured from the equator, so a ring around a pole (its
+		 * longitude turns a full circle) is missing the hemisphere between
+		 * the equator and that pole. Add it back, which gives the area on the
+		 * ring's right, then keep the smaller side, signed as described in
+		 * the class doc: both sides hold a pole, so "the side without the
+		 * pole" can't be used as it is for other rings.
+		 */
+		if (Math.abs(turned) > Math.PI) {
+			sum += 2.0 * Math.PI;
+			if (sum > 2.0 * Math.PI)
+				sum -= 4.0 * Math.PI;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * @param latitude geodetic latitude, degrees
+	 * @return tan(beta / 2), beta the authalic latitude
+	 */
+	private static double tanHalfAuthalic(double latitude) {
+
+		double phi = Math.toRadians(latitude);
+		double sin2 = Math.sin(2.0 * phi);
+		double cos2 = Math.cos(2.0 * phi);
+
+		/* sin 4phi and sin 6phi from the double angle */
+		double sin4 = 2.0 * sin2 * cos2;
+		double sin6 = sin2 * (3.0 - 4.0 * sin2 * sin2);
+
+		double beta = phi - B2 * sin2 + B4 * sin4 - B6 * sin6;
+		return Math.tan(beta * 0.5);
+	}
+}
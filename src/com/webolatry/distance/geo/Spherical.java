@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.geo;
+
+/**
+ * Great-circle computations on a spherical earth. Good to about 0.5%
+ * against the WGS84 ellipsoid, which is plenty for ranking and searching
+ * nearby points locally; displayed distances still come from the service.
+ *
+ * All coordinates are WGS84 degrees, x = longitude and y = latitude, as in
+ * service.Point.
+ *
+ * @author Tom
+ *
+ */
+public final class Spherical {
+
+	/** mean earth radius (IUGG), meters */
+	public static final double EARTH_RADIUS = 6371008.8;
+
+	private Spherical() {
+	}
+
+	/**
+	 * Great-circle distance, using the haversine formula (well conditioned
+	 * for small distances)
+	 *
+	 * @return the distance between the two points, in meters
+	 */
+	public static double distance(double x1, double y1, double x2, double y2) {
+
+		double phi1 = Math.toRadians(y1);
+		double phi2 = Math.toRadians(y2);
+		double sinDPhi = Math.sin((phi2 - phi1) * 0.5);
+		double sinDLambda = Math.sin(Math.toRadians(x2 - x1) * 0.5);
+
+		double h = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2)
+				* sinDLambda * sinDLambda;
+
+		/* rounding can push h just past 1 for antipodal points */
+		if (h > 1.0)
+			h = 1.0;
+
+		return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(h));
+	}
+
+	/**
+	 * Converts the straight-line distance between two points on the unit
+	 * sphere to a great-circle distance
+	 *
+	 * @param chord the chord length, 0 to 2
+	 * @return the distance in meters
+	 */
+	public static double chordToDistance(double chord) {
+
+		double half = chord * 0.5;
+		if (half >= 1.0)
+			return Math.PI * EARTH_RADIUS;
+
+		/*
+		 * 2 * asin(half), written with atan: asin is several times slower
+		 * for arguments above 0.5 and long distances are common here
+		 */
+		return 4.0 * EARTH_RADIUS
+				* Math.atan(half / (1.0 + Math.sqrt(1.0 - half * half)));
+	}
+}
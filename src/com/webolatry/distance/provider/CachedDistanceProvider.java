@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.provider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * Remembers the most recently used distances of another provider.
+ *
+ * Points are matched to 1e-7 degrees (about a centimeter), and A to B is
+ * the same entry as B to A. Failures are not cached, nor are distances that
+ * look like one: not finite, negative, or zero between different points.
+ * Two threads asking for the same uncached pair at once both go to the
+ * provider.
+ *
+ * @author Tom
+ *
+ */
+public class CachedDistanceProvider implements DistanceProvider {
+
+	/** coordinates are matched in units of 1e-7 degrees */
+	private static final double SCALE = 1e7;
+
+	/** the provider of uncached distances */
+	private DistanceProvider mProvider;
+
+	/** distances in meters, least recently used first */
+	private LinkedHashMap<Key, Double> mCache;
+
+	private int mHits;
+	private int mMisses;
+
+	/**
+	 * constructor
+	 *
+	 * @param provider the provider of uncached distances
+	 * @param capacity the most distances to keep
+	 */
+	public CachedDistanceProvider(DistanceProvider provider, final int capacity) {
+
+		mProvider = provider;
+		mCache = new LinkedHashMap<Key, Double>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Double> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public double getDistance(double x1, double y1, double x2, double y2)
+			throws ServiceException {
+
+		Key key = new Key(x1, y1, x2, y2);
+
+		synchronized (this) {
+			Double cached = mCache.get(key);
+			if (cached != null) {
+				mHits++;
+				return cached.doubleValue();
+			}
+			mMisses++;
+		}
+
+		/* not holding the lock while the provider works */
+		double distance = mProvider.getDistance(x1, y1, x2, y2);
+
+		if (isPlausible(key, distance)) {
+			synchronized (this) {
+				mCache.put(key, Double.valueOf(distance));
+			}
+		}
+		return distance;
+	}
+
+	public String getName() {
+		return "cached " + mProvider.getName();
+	}
+
+	/**
+	 * @return false for a distance that is more likely a failed request than
+	 *         an answer, which would otherwise stay in the cache
+	 */
+	private static boolean isPlausible(Key key, double distance) {
+
+		if (Double.isNaN(distance) || Double.isInfinite(distance)
+				|| distance < 0.0)
+			return false;
+
+		/* zero only between points the cache can't tell apart */
+		return distance > 0.0 || key.isSinglePoint();
+	}
+
+	/**
+	 * Forgets every distance
+	 */
+	public synchronized void clear() {
+		mCache.clear();
+	}
+
+	/**
+	 * @return calls answered from the cache
+	 */
+	public synchronized int getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return calls passed to the provider
+	 */
+	public synchronized int getMisses() {
+		return mMisses;
+	}
+
+	/**
+	 * A point pair, quantized, in a canonical order
+	 */
+	private static class Key {
+
+		private final long mX1;
+		private final long mY1;
+		private final long mX2;
+		private final long mY2;
+
+		Key(double x1, double y1, double x2, double y2) {
+
+			long qx1 = Math.round(x1 * SCALE);
+			long qy1 = Math.round(y1 * SCALE);
+			long qx2 = Math.round(x2 * SCALE);
+			long qy2 = Math.round(y2 * SCALE);
+
+			/* distance is symmetric, store the smaller point first */
+			if (qx1 < qx2 || (qx1 == qx2 && qy1 <= qy2)) {
+				mX1 = qx1;
+				mY1 = qy1;
+				mX2 = qx2;
+				mY2 = qy2;
+			} else {
+				mX1 = qx2;
+				mY1 = qy2;
+				mX2 = qx1;
+				mY2 = qy1;
+			}
+		}
+
+		/**
+		 * @return true if both points are the same, to the matching precision
+		 */
+		boolean isSinglePoint() {
+			return mX1 == mX2 && mY1 == mY2;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+
+			if (!(o instanceof Key))
+				return false;
+
+			Key other = (Key) o;
+			return mX1 == other.mX1 && mY1 == other.mY1 && mX2 == other.mX2
+					&& mY2 == other.mY2;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = mX1;
+			h = h * 31 + mY1;
+			h = h * 31 + mX2;
+			h = h * 31 + mY2;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
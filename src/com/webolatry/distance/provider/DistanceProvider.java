@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.provider;
+
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * A source of geodesic distances between two points: a GeometryServer, a
+ * local computation, a cache in front of either, or a selector choosing
+ * among several.
+ *
+ * Implementations may block (network i/o) and must allow calls from several
+ * threads at once.
+ *
+ * @author Tom
+ *
+ */
+public interface DistanceProvider {
+
+	/**
+	 * @param x1 start longitude (WGS84 degrees)
+	 * @param y1 start latitude (WGS84 degrees)
+	 * @param x2 end longitude (WGS84 degrees)
+	 * @param y2 end latitude (WGS84 degrees)
+	 * @return the geodesic distance between the points, in meters
+	 * @throws ServiceException if the distance couldn't be obtained
+	 */
+	double getDistance(double x1, double y1, double x2, double y2)
+			throws ServiceException;
+
+	/**
+	 * @return a short name for logs and statistics
+	 */
+	String getName();
+}
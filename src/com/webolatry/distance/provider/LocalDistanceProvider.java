@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.provider;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+
+/**
+ * Distances computed on the device with Ellipsoidal, no network needed.
+ * Agrees with the GeometryServer's geodesic distance to within about 20
+ * parts per million.
+ *
+ * @author Tom
+ *
+ */
+public class LocalDistanceProvider implements DistanceProvider {
+
+	public double getDistance(double x1, double y1, double x2, double y2) {
+		return Ellipsoidal.distance(x1, y1, x2, y2);
+	}
+
+	public String getName() {
+		return "local";
+	}
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.provider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * Chooses among several providers by their recent latency and errors, and
+ * hedges slow requests.
+ *
+ * Each request goes first to the preferred provider: the healthy one with
+ * the lowest median latency, or with setRouteByLatency(false) the first
+ * healthy one in the order given. If it hasn't answered once its usual
+ * worst-case latency has passed (the hedge percentile of its recent
+ * latencies, 90th by default), the request is also sent to the next
+ * provider, and whichever answers first wins. A provider that fails hands
+ * the request on to the next one straight away.
+ *
+ * A provider is unhealthy, and only used after the healthy ones, while more
+ * than half of its recent requests fail; it is given another chance
+ * RETRY_NANOS after its last failure.
+ *
+ * Requests run on an executor, the caller's thread waits for the first
+ * answer. Calls may come from several threads at once.
+ *
+ * @author Tom
+ *
+ */
+public class ProviderSelector implements DistanceProvider {
+
+	/**
+	 * by default, hedge once a request outlasts 90% of recent ones. Hedging
+	 * only cuts the tail if the slow requests are rarer than 1 - percentile:
+	 * with 5% slow requests a p95 delay already waits them out.
+	 */
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0.9;
+
+	/** the hedge delay until a provider has MIN_SAMPLES latencies */
+	public static final long DEFAULT_HEDGE_NANOS = 1000000000L;
+
+	/** an unhealthy provider is tried again this long after its last error */
+	public static final long RETRY_NANOS = 30000000000L;
+
+	/** latencies kept per provider */
+	private static final int SAMPLES = 128;
+	/** latencies needed before a provider's percentiles are trusted */
+	private static final int MIN_SAMPLES = 8;
+	/** weight of the latest request in the error rate */
+	private static final double ERROR_WEIGHT = 0.1;
+	/** error rate above which a provider is unhealthy */
+	private static final double UNHEALTHY = 0.5;
+
+	/** the providers, in order of preference */
+	private DistanceProvider[] mProviders;
+	/** recent behaviour of each provider */
+	private ProviderStats[] mStats;
+
+	/** runs the requests */
+	private ExecutorService mExecutor;
+
+	private volatile boolean mRouteByLatency = true;
+	private volatile boolean mHedging = true;
+	private volatile double mHedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+
+	/**
+	 * constructor, with an executor of its own (daemon threads)
+	 *
+	 * @param providers the providers, in order of preference
+	 */
+	public ProviderSelector(DistanceProvider... providers) {
+		this(Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ProviderSelector");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), providers);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param executor runs the requests, needs a thread per provider for
+	 *            hedging to help
+	 * @param providers the providers, in order of preference
+	 */
+	public ProviderSelector(ExecutorService executor,
+			DistanceProvider... providers) {
+
+		if (providers.length == 0)
+			throw new IllegalArgumentException("No providers");
+
+		mExecutor = executor;
+		mProviders = providers.clone();
+		mStats = new ProviderStats[providers.length];
+		for (int i = 0; i < providers.length; i++)
+			mStats[i] = new ProviderStats();
+	}
+
+	/**
+	 * @param byLatency true to prefer the fastest healthy provider, false to
+	 *            keep to the given order of the healthy ones
+	 */
+	public void setRouteByLatency(boolean byLatency) {
+		mRouteByLatency = byLatency;
+	}
+
+	/**
+	 * @param hedging false to only move on to the next provider on failure
+	 */
+	public void setHedging(boolean hedging) {
+		mHedging = hedging;
+	}
+
+	/**
+	 * @param percentile the fraction of the preferred provider's recent
+	 *            latencies to wait out before hedging, 0 to 1
+	 */
+	public void setHedgePercentile(double percentile) {
+		mHedgePercentile = percentile;
+	}
+
+	/**
+	 * @param index the provider index, in constructor order
+	 * @param percentile 0 to 1
+	 * @return the provider's recent latency at that percentile, in
+	 *         nanoseconds, -1 without enough samples
+	 */
+	public long getLatency(int index, double percentile) {
+		return mStats[index].percentile(percentile, -1);
+	}
+
+	/**
+	 * @param index the provider index, in constructor order
+	 * @return the provider's recent error rate, 0 to 1
+	 */
+	public double getErrorRate(int index) {
+		return mStats[index].getErrorRate();
+	}
+
+	/**
+	 * Stops the executor, once running requests finish
+	 */
+	public void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	public double getDistance(double x1, double y1, double x2, double y2)
+			throws ServiceException {
+
+		int[] order = rank();
+		int count = order.length;
+
+		CompletionService<Double> completion = new ExecutorCompletionService<Double>(
+				mExecutor);
+		ArrayList<Future<Double>> futures = new ArrayList<Future<Double>>(
+				count);
+
+		futures.add(completion.submit(new Attempt(order[0], x1, y1, x2, y2)));
+		int started = 1;
+		int failed = 0;
+
+		boolean hedgePending = mHedging && count > 1;
+		long hedgeAt = hedgePending ? System.nanoTime()
+				+ mStats[order[0]].percentile(mHedgePercentile,
+						DEFAULT_HEDGE_NANOS) : 0;
+
+		Throwable lastError = null;
+
+		try {
+
+			while (true) {
+
+				Future<Double> done;
+				if (hedgePending) {
+					done = completion.poll(hedgeAt - System.nanoTime(),
+							TimeUnit.NANOSECONDS);
+					if (done == null) {
+						/* the preferred provider is slow, ask the next too */
+						hedgePending = false;
+						futures.add(completion.submit(new Attempt(
+								order[started], x1, y1, x2, y2)));
+						started++;
+						continue;
+					}
+				} else {
+					done = completion.take();
+				}
+
+				try {
+					return done.get().doubleValue();
+				} catch (ExecutionException e) {
+
+					lastError = e.getCause();
+					failed++;
+
+					/* everything started has failed, try the next one now */
+					if (failed == started) {
+						if (started == count)
+							break;
+						hedgePending = false;
+						futures.add(completion.submit(new Attempt(
+								order[started], x1, y1, x2, y2)));
+						started++;
+					}
+				}
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+
+		} finally {
+
+			/* the losers' answers aren't needed */
+			for (int i = 0; i < started; i++)
+				futures.get(i).cancel(true);
+		}
+
+		if (lastError instanceof ServiceException)
+			throw (ServiceException) lastError;
+		throw new ServiceException(lastError);
+	}
+
+	public String getName() {
+		return "selector";
+	}
+
+	/**
+	 * @return provider indexes, the order to try them this time
+	 */
+	private int[] rank() {
+
+		int count = mProviders.length;
+		int[] order = new int[count];
+		long[] keys = new long[count];
+
+		long now = System.nanoTime();
+		boolean byLatency = mRouteByLatency;
+
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+
+			/*
+			 * healthy providers first; then by median latency, where a
+			 * provider without enough samples counts as fast so it gets some
+			 */
+			long key = byLatency ? Math.max(mStats[i].percentile(0.5, 0), 0)
+					: i;
+			if (!mStats[i].isHealthy(now))
+				key += Long.MAX_VALUE / 2;
+			keys[i] = key;
+		}
+
+		/* insertion sort, a handful of providers */
+		for (int i = 1; i < count; i++) {
+			int index = order[i];
+			long key = keys[i];
+			int j = i - 1;
+			while (j >= 0 && keys[j] > key) {
+				order[j + 1] = order[j];
+				keys[j + 1] = keys[j];
+				j--;
+			}
+			order[j + 1] = index;
+			keys[j + 1] = key;
+		}
+
+		return order;
+	}
+
+	/**
+	 * One request to one provider, recording how it went
+	 */
+	private class Attempt implements Callable<Double> {
+
+		private final int mIndex;
+		private final double mX1;
+		private final double mY1;
+		private final double mX2;
+		private final double mY2;
+
+		Attempt(int index, double x1, double y1, double x2, double y2) {
+			mIndex = index;
+			mX1 = x1;
+			mY1 = y1;
+			mX2 = x2;
+			mY2 = y2;
+		}
+
+		public Double call() throws Exception {
+
+			long start = System.nanoTime();
+			try {
+				double distance = mProviders[mIndex].getDistance(mX1, mY1,
+						mX2, mY2);
+				mStats[mIndex].recordSuccess(System.nanoTime() - start);
+				return Double.valueOf(distance);
+			} catch (Exception e) {
+				/* a cancelled loser didn't fail */
+				if (!Thread.currentThread().isInterrupted())
+					mStats[mIndex].recordError(System.nanoTime());
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Recent latencies and error rate of one provider
+	 */
+	private static class ProviderStats {
+
+		/** latest latencies, a ring */
+		private long[] mLatencies = new long[SAMPLES];
+		/** scratch for percentiles */
+		private long[] mSorted = new long[SAMPLES];
+		private int mCount;
+		private int mNext;
+
+		private double mErrorRate;
+		private long mLastError;
+
+		synchronized void recordSuccess(long nanos) {
+			mLatencies[mNext] = nanos;
+			mNext = (mNext + 1) % SAMPLES;
+			if (mCount < SAMPLES)
+				mCount++;
+			mErrorRate *= 1.0 - ERROR_WEIGHT;
+		}
+
+		synchronized void recordError(long now) {
+			mErrorRate = mErrorRate * (1.0 - ERROR_WEIGHT) + ERROR_WEIGHT;
+			mLastError = now;
+		}
+
+		synchronized double getErrorRate() {
+			return mErrorRate;
+		}
+
+		synchronized boolean isHealthy(long now) {
+			return mErrorRate <= UNHEALTHY || now - mLastError > RETRY_NANOS;
+		}
+
+		/**
+		 * @return the latency at the percentile, or fallback without enough
+		 *         samples
+		 */
+		synchronized long percentile(double percentile, long fallback) {
+
+			if (mCount < MIN_SAMPLES)
+				return fallback;
+
+			System.arraycopy(mLatencies, 0, mSorted, 0, mCount);
+			Arrays.sort(mSorted, 0, mCount);
+
+			int index = (int) Math.ceil(percentile * mCount) - 1;
+			return mSorted[Math.max(0, Math.min(mCount - 1, index))];
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.provider;
+
+import java.util.ArrayList;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+import com.webolatry.distance.service.Point;
+import com.webolatry.distance.service.Service;
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * Distances from a GeometryServer distance request.
+ *
+ * A Service sends one request at a time, so idle Services are pooled and
+ * concurrent calls each get their own.
+ *
+ * @author Tom
+ *
+ */
+public class RemoteDistanceProvider implements DistanceProvider {
+
+	/** the GeometryServer url */
+	private String mServiceUrl;
+
+	/** Services not currently in use */
+	private ArrayList<Service> mIdle = new ArrayList<Service>();
+
+	/**
+	 * constructor, for the ESRI sample GeometryServer
+	 */
+	public RemoteDistanceProvider() {
+		this(Service.DEFAULT_SERVICE_URL);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param serviceUrl the GeometryServer url
+	 */
+	public RemoteDistanceProvider(String serviceUrl) {
+		mServiceUrl = serviceUrl;
+	}
+
+	/**
+	 * @return the GeometryServer url
+	 */
+	public String getServiceUrl() {
+		return mServiceUrl;
+	}
+
+	public double getDistance(double x1, double y1, double x2, double y2)
+			throws ServiceException {
+
+		Service service = acquire();
+		try {
+			double miles = service.GetDistance(new Point(x1, y1), new Point(
+					x2, y2));
+			return miles * Ellipsoidal.METERS_PER_SURVEY_MILE;
+		} finally {
+			release(service);
+		}
+	}
+
+	public String getName() {
+		return mServiceUrl;
+	}
+
+	private synchronized Service acquire() {
+		int size = mIdle.size();
+		return size > 0 ? mIdle.remove(size - 1) : new Service(mServiceUrl);
+	}
+
+	private synchronized void release(Service service) {
+		mIdle.add(service);
+	}
+}
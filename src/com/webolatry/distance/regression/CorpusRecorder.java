@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.regression;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import com.webolatry.distance.service.Point;
+import com.webolatry.distance.service.Service;
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * Refreshes the golden corpus references from a GeometryServer, for when
+ * the server is the authority the local engines should agree with.
+ *
+ * Needs the network; the harness itself never does. Pairs the server
+ * can't answer keep their old reference, as do answers that can't be right
+ * (not finite, negative, or zero between different points), which would
+ * otherwise become trusted references.
+ *
+ * @author Tom
+ *
+ */
+public class CorpusRecorder {
+
+	/** source recorded for references from the server */
+	public static final String SOURCE = "server";
+
+	/**
+	 * Asks the server for every pair of the corpus
+	 *
+	 * @param corpus the corpus, references replaced in place
+	 * @param service the server
+	 * @return the number of pairs the server failed, left unchanged
+	 */
+	public static int record(GoldenCorpus corpus, Service service) {
+
+		int failures = 0;
+		for (int i = 0, size = corpus.size(); i < size; i++) {
+			try {
+				double miles = service.GetDistance(new Point(corpus.getX1(i),
+						corpus.getY1(i)), new Point(corpus.getX2(i), corpus
+						.getY2(i)));
+				if (!isPlausible(corpus, i, miles)) {
+					failures++;
+					continue;
+				}
+				corpus.setReference(i, miles, SOURCE);
+			} catch (ServiceException e) {
+				failures++;
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return false for an answer that is more likely a server failure than
+	 *         a distance
+	 */
+	private static boolean isPlausible(GoldenCorpus corpus, int i, double miles) {
+
+		if (Double.isNaN(miles) || Double.isInfinite(miles) || miles < 0.0)
+			return false;
+
+		return miles > 0.0
+				|| (corpus.getX1(i) == corpus.getX2(i) && corpus.getY1(i) == corpus
+						.getY2(i));
+	}
+
+	/**
+	 * Records the shipped corpus against a server and writes the result.
+	 *
+	 * Arguments: output-file [service-url]
+	 *
+	 * @param args the arguments
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 1 || args.length > 2)
+			throw new IllegalArgumentException(
+					"Arguments: output-file [service-url]");
+
+		GoldenCorpus corpus = GoldenCorpus.load();
+		Service service = args.length > 1 ? new Service(args[1])
+				: new Service();
+
+		int failures = record(corpus, service);
+
+		OutputStream out = new FileOutputStream(args[0]);
+		try {
+			corpus.write(out);
+		} finally {
+			out.close();
+		}
+
+		System.out.println((corpus.size() - failures) + " of "
+				+ corpus.size() + " references recorded from "
+				+ service.getServiceUrl());
+	}
+}
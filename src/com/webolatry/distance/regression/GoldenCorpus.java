@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.regression;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+
+/**
+ * Point pairs with reference geodesic distances, for checking the local
+ * distance engines without a network.
+ *
+ * The corpus is a text file, golden_distances.csv next to this class: '#'
+ * comment lines, then one pair per line as
+ * category,x1,y1,x2,y2,miles,source. See the file header for where the
+ * references come from.
+ *
+ * @author Tom
+ *
+ */
+public class GoldenCorpus {
+
+	/** the corpus shipped with the code, a classpath resource */
+	public static final String RESOURCE = "golden_distances.csv";
+
+	/** comment lines, kept so write() preserves them */
+	private ArrayList<String> mComments = new ArrayList<String>();
+
+	private int mSize;
+	private String[] mCategories = new String[64];
+	private String[] mSources = new String[64];
+	private double[] mX1 = new double[64];
+	private double[] mY1 = new double[64];
+	private double[] mX2 = new double[64];
+	private double[] mY2 = new double[64];
+	private double[] mMiles = new double[64];
+
+	/**
+	 * Reads the corpus shipped with the code
+	 *
+	 * @return the corpus
+	 * @throws IOException if the resource is missing or malformed
+	 */
+	public static GoldenCorpus load() throws IOException {
+
+		InputStream in = GoldenCorpus.class.getResourceAsStream(RESOURCE);
+		if (in == null)
+			throw new FileNotFoundException(RESOURCE);
+
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a corpus
+	 *
+	 * @param in the corpus text, UTF-8
+	 * @return the corpus
+	 * @throws IOException if the text can't be read or is malformed
+	 */
+	public static GoldenCorpus read(InputStream in) throws IOException {
+
+		GoldenCorpus corpus = new GoldenCorpus();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				"UTF-8"));
+
+		int lineNumber = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+
+			lineNumber++;
+			String trimmed = line.trim();
+			if (trimmed.length() == 0)
+				continue;
+			if (trimmed.charAt(0) == '#') {
+				corpus.mComments.add(line);
+				continue;
+			}
+
+			String[] fields = trimmed.split(",");
+			if (fields.length != 7)
+				throw new IOException("Corpus line " + lineNumber
+						+ ": expected 7 fields");
+
+			try {
+				corpus.add(fields[0], Double.parseDouble(fields[1]),
+						Double.parseDouble(fields[2]),
+						Double.parseDouble(fields[3]),
+						Double.parseDouble(fields[4]),
+						Double.parseDouble(fields[5]), fields[6]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Corpus line " + lineNumber + ": "
+						+ e.getMessage());
+			}
+		}
+
+		return corpus;
+	}
+
+	/**
+	 * Writes the corpus in the format read() accepts, comments first
+	 *
+	 * @param out receives the text, UTF-8
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException {
+
+		Writer writer = new OutputStreamWriter(out, "UTF-8");
+
+		for (String comment : mComments) {
+			writer.write(comment);
+			writer.write('\n');
+		}
+
+		for (int i = 0; i < mSize; i++) {
+			writer.write(mCategories[i] + "," + mX1[i] + "," + mY1[i] + ","
+					+ mX2[i] + "," + mY2[i] + "," + mMiles[i] + ","
+					+ mSources[i] + "\n");
+		}
+
+		writer.flush();
+	}
+
+	/**
+	 * Appends a pair
+	 *
+	 * @param category the kind of pair, such as "antipodal"
+	 * @param miles the reference distance, survey miles
+	 * @param source where the reference came from
+	 */
+	public void add(String category, double x1, double y1, double x2,
+			double y2, double miles, String source) {
+
+		if (mSize == mX1.length)
+			grow();
+
+		mCategories[mSize] = category;
+		mX1[mSize] = x1;
+		mY1[mSize] = y1;
+		mX2[mSize] = x2;
+		mY2[mSize] = y2;
+		mMiles[mSize] = miles;
+		mSources[mSize] = source;
+		mSize++;
+	}
+
+	/**
+	 * Replaces the reference distance of a pair
+	 *
+	 * @param index the pair index
+	 * @param miles the reference distance, survey miles
+	 * @param source where the reference came from
+	 */
+	public void setReference(int index, double miles, String source) {
+		mMiles[index] = miles;
+		mSources[index] = source;
+	}
+
+	/**
+	 * @return the number of pairs
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the kind of pair, such as "antipodal"
+	 */
+	public String getCategory(int index) {
+		return mCategories[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return where the reference came from
+	 */
+	public String getSource(int index) {
+		return mSources[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the first longitude (WGS84 degrees)
+	 */
+	public double getX1(int index) {
+		return mX1[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the first latitude (WGS84 degrees)
+	 */
+	public double getY1(int index) {
+		return mY1[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the second longitude (WGS84 degrees)
+	 */
+	public double getX2(int index) {
+		return mX2[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the second latitude (WGS84 degrees)
+	 */
+	public double getY2(int index) {
+		return mY2[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the reference distance, survey miles
+	 */
+	public double getMiles(int index) {
+		return mMiles[index];
+	}
+
+	/**
+	 * @param index the pair index
+	 * @return the reference distance, meters
+	 */
+	public double getMeters(int index) {
+		return mMiles[index] * Ellipsoidal.METERS_PER_SURVEY_MILE;
+	}
+
+	private void grow() {
+
+		int capacity = mSize * 2;
+
+		String[] categories = new String[capacity];
+		System.arraycopy(mCategories, 0, categories, 0, mSize);
+		mCategories = categories;
+
+		String[] sources = new String[capacity];
+		System.arraycopy(mSources, 0, sources, 0, mSize);
+		mSources = sources;
+
+		mX1 = grow(mX1, capacity);
+		mY1 = grow(mY1, capacity);
+		mX2 = grow(mX2, capacity);
+		mY2 = grow(mY2, capacity);
+		mMiles = grow(mMiles, capacity);
+	}
+
+	private double[] grow(double[] array, int capacity) {
+		double[] grown = new double[capacity];
+		System.arraycopy(array, 0, grown, 0, mSize);
+		return grown;
+	}
+}
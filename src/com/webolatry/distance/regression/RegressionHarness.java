@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.regression;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.webolatry.distance.geo.Spherical;
+import com.webolatry.distance.provider.DistanceProvider;
+import com.webolatry.distance.provider.LocalDistanceProvider;
+import com.webolatry.distance.service.ServiceException;
+
+/**
+ * Checks the local distance engines against the golden corpus, for accuracy
+ * and for speed, fully offline.
+ *
+ * Each engine has two error budgets, the largest relative error allowed on
+ * any pair and on pairs within ANTIPODAL_DEGREES of antipodal (where closed
+ * forms leave the true geodesic), and a time budget (mean nanoseconds per
+ * distance on a desktop JVM). An engine that exceeds any of them fails. Run
+ * main() to check every engine; it exits with status 1 on any failure.
+ *
+ * @author Tom
+ *
+ */
+public class RegressionHarness {
+
+	/** pairs this close to antipodal have the antipodal error budget */
+	public static final double ANTIPODAL_DEGREES = 3.0;
+
+	/** minimum time spent timing each engine, nanoseconds */
+	private static final long TIMING_NANOS = 300000000L;
+
+	/** the corpus */
+	private GoldenCorpus mCorpus;
+
+	/** time budgets are multiplied by this, infinite to skip timing checks */
+	private double mTimeScale = 1.0;
+
+	/** keeps the timed results alive */
+	private double mSink;
+
+	/**
+	 * constructor
+	 *
+	 * @param corpus the pairs and reference distances
+	 */
+	public RegressionHarness(GoldenCorpus corpus) {
+		mCorpus = corpus;
+	}
+
+	/**
+	 * @param scale multiplier of every time budget, for slower machines,
+	 *            Double.POSITIVE_INFINITY to only check accuracy
+	 */
+	public void setTimeScale(double scale) {
+		mTimeScale = scale;
+	}
+
+	/**
+	 * @return the local engines and their budgets
+	 */
+	public static Engine[] getDefaultEngines() {
+
+		return new Engine[] {
+				/* Andoyer-Lambert, 2e-5 relative, 4.2e-4 near antipodes */
+				new Engine(new LocalDistanceProvider(), 3e-5, 5e-4, 400),
+				/* haversine on the mean-radius sphere, up to 0.56% off */
+				new Engine(new HaversineEngine(), 6e-3, 6e-3, 300),
+				/* unit-vector chords, as PointIndex */
+				new Engine(new ChordEngine(), 6e-3, 6e-3, 300) };
+	}
+
+	/**
+	 * Measures one engine over the whole corpus
+	 *
+	 * @param engine the engine and its budgets
+	 * @return the errors, timing and verdict
+	 * @throws ServiceException if the engine fails
+	 */
+	public Result run(Engine engine) throws ServiceException {
+
+		DistanceProvider provider = engine.provider;
+		int size = mCorpus.size();
+
+		Result result = new Result(engine);
+
+		double sumError = 0.0;
+		double sumRelative = 0.0;
+
+		/* beyond this great circle distance a pair is nearly antipodal */
+		double antipodal = Math.toRadians(180.0 - ANTIPODAL_DEGREES)
+				* Spherical.EARTH_RADIUS;
+
+		for (int i = 0; i < size; i++) {
+
+			double reference = mCorpus.getMeters(i);
+			double distance = provider.getDistance(mCorpus.getX1(i),
+					mCorpus.getY1(i), mCorpus.getX2(i), mCorpus.getY2(i));
+
+			double error = Math.abs(distance - reference);
+			double relative = reference > 0.0 ? error / reference : error;
+
+			sumError += error;
+			sumRelative += relative;
+
+			/* NaN counts as the worst possible */
+			if (relative > result.maxRelativeError || relative != relative) {
+				result.maxRelativeError = relative != relative ? Double.POSITIVE_INFINITY
+						: relative;
+				result.worstIndex = i;
+			}
+			if (error > result.maxError)
+				result.maxError = error;
+
+			/* NaN fails whichever budget applies */
+			double arc = Spherical.distance(mCorpus.getX1(i),
+					mCorpus.getY1(i), mCorpus.getX2(i), mCorpus.getY2(i));
+			double budget = arc > antipodal ? engine.maxAntipodalRelativeError
+					: engine.maxRelativeError;
+			if (!(relative <= budget))
+				result.accurate = false;
+
+			String category = mCorpus.getCategory(i);
+			Double worst = result.categories.get(category);
+			if (worst == null || relative > worst.doubleValue())
+				result.categories.put(category, Double.valueOf(relative));
+		}
+
+		result.meanError = size > 0 ? sumError / size : 0.0;
+		result.meanRelativeError = size > 0 ? sumRelative / size : 0.0;
+		result.nanosPerOp = time(provider);
+
+		result.fast = result.nanosPerOp <= engine.maxNanos * mTimeScale;
+		return result;
+	}
+
+	/**
+	 * @return mean nanoseconds per distance, after warming up
+	 */
+	private double time(DistanceProvider provider) throws ServiceException {
+
+		int size = mCorpus.size();
+		if (size == 0)
+			return 0.0;
+
+		double sum = 0.0;
+
+		/* warm up, so the JIT has compiled the engine */
+		for (int pass = 0; pass < 200; pass++)
+			sum += pass(provider);
+
+		long start = System.nanoTime();
+		long elapsed;
+		long count = 0;
+		do {
+			sum += pass(provider);
+			count += size;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < TIMING_NANOS);
+
+		mSink += sum;
+		return (double) elapsed / count;
+	}
+
+	/**
+	 * @return the sum of every corpus distance
+	 */
+	private double pass(DistanceProvider provider) throws ServiceException {
+
+		double sum = 0.0;
+		for (int i = 0, size = mCorpus.size(); i < size; i++)
+			sum += provider.getDistance(mCorpus.getX1(i), mCorpus.getY1(i),
+					mCorpus.getX2(i), mCorpus.getY2(i));
+		return sum;
+	}
+
+	/**
+	 * Checks every local engine and prints a report.
+	 *
+	 * Arguments: [-corpus file] [-time-scale factor | -no-timing]
+	 *
+	 * @param args the arguments
+	 */
+	public static void main(String[] args) throws Exception {
+
+		String corpusFile = null;
+		double timeScale = 1.0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-corpus") && i + 1 < args.length)
+				corpusFile = args[++i];
+			else if (args[i].equals("-time-scale") && i + 1 < args.length)
+				timeScale = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-no-timing"))
+				timeScale = Double.POSITIVE_INFINITY;
+			else
+				throw new IllegalArgumentException("Unknown argument "
+						+ args[i]);
+		}
+
+		GoldenCorpus corpus;
+		if (corpusFile == null) {
+			corpus = GoldenCorpus.load();
+		} else {
+			InputStream in = new FileInputStream(corpusFile);
+			try {
+				corpus = GoldenCorpus.read(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		RegressionHarness harness = new RegressionHarness(corpus);
+		harness.setTimeScale(timeScale);
+
+		System.out.println(corpus.size() + " pairs");
+
+		boolean passed = true;
+		for (Engine engine : getDefaultEngines()) {
+
+			Result result = harness.run(engine);
+			passed &= result.passed();
+
+			System.out.println(result);
+			for (Map.Entry<String, Double> category : result.categories
+					.entrySet()) {
+				System.out.println("    " + category.getKey() + ": max "
+						+ (float) category.getValue().doubleValue()
+						+ " relative");
+			}
+		}
+
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if (!passed)
+			System.exit(1);
+	}
+
+	/**
+	 * A local engine and its budgets
+	 *
+	 * @author Tom
+	 *
+	 */
+	public static class Engine {
+
+		/** the engine */
+		public final DistanceProvider provider;
+		/** the largest relative error allowed on any pair */
+		public final double maxRelativeError;
+		/** the largest relative error allowed on nearly antipodal pairs */
+		public final double maxAntipodalRelativeError;
+		/** the most mean nanoseconds per distance allowed */
+		public final double maxNanos;
+
+		public Engine(DistanceProvider provider, double maxRelativeError,
+				double maxAntipodalRelativeError, double maxNanos) {
+			this.provider = provider;
+			this.maxRelativeError = maxRelativeError;
+			this.maxAntipodalRelativeError = maxAntipodalRelativeError;
+			this.maxNanos = maxNanos;
+		}
+	}
+
+	/**
+	 * The outcome of one engine
+	 *
+	 * @author Tom
+	 *
+	 */
+	public static class Result {
+
+		/** the engine measured */
+		public final Engine engine;
+		/** largest and mean absolute error, meters */
+		public double maxError;
+		public double meanError;
+		/** largest and mean relative error */
+		public double maxRelativeError;
+		public double meanRelativeError;
+		/** corpus index of the pair with the largest relative error */
+		public int worstIndex = -1;
+		/** mean time per distance, nanoseconds */
+		public double nanosPerOp;
+		/** within the error and time budgets */
+		public boolean accurate = true;
+		public boolean fast;
+		/** largest relative error of each category */
+		public final Map<String, Double> categories = new LinkedHashMap<String, Double>();
+
+		Result(Engine engine) {
+			this.engine = engine;
+		}
+
+		/**
+		 * @return true if within both budgets
+		 */
+		public boolean passed() {
+			return accurate && fast;
+		}
+
+		@Override
+		public String toString() {
+			return engine.provider.getName() + ": max " + (float) maxError
+					+ " m (" + (float) maxRelativeError + " relative, pair "
+					+ worstIndex + "), mean " + (float) meanError + " m ("
+					+ (float) meanRelativeError + "), "
+					+ Math.round(nanosPerOp) + " ns/op"
+					+ (accurate ? "" : " ACCURACY REGRESSION")
+					+ (fast ? "" : " SPEED REGRESSION");
+		}
+	}
+
+	/**
+	 * Spherical.distance
+	 */
+	private static class HaversineEngine implements DistanceProvider {
+
+		public double getDistance(double x1, double y1, double x2, double y2) {
+			return Spherical.distance(x1, y1, x2, y2);
+		}
+
+		public String getName() {
+			return "haversine";
+		}
+	}
+
+	/**
+	 * Unit vectors and Spherical.chordToDistance
+	 */
+	private static class ChordEngine implements DistanceProvider {
+
+		public double getDistance(double x1, double y1, double x2, double y2) {
+
+			double lambda1 = Math.toRadians(x1);
+			double phi1 = Math.toRadians(y1);
+			double lambda2 = Math.toRadians(x2);
+			double phi2 = Math.toRadians(y2);
+
+			double cosPhi1 = Math.cos(phi1);
+			double cosPhi2 = Math.cos(phi2);
+
+			double dx = cosPhi1 * Math.cos(lambda1) - cosPhi2
+					* Math.cos(lambda2);
+			double dy = cosPhi1 * Math.sin(lambda1) - cosPhi2
+					* Math.sin(lambda2);
+			double dz = Math.sin(phi1) - Math.sin(phi2);
+
+			return Spherical.chordToDistance(Math.sqrt(dx * dx + dy * dy + dz
+					* dz));
+		}
+
+		public String getName() {
+			return "chord";
+		}
+	}
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.service;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.webolatry.distance.geo.PointBuffer;
+
+/**
+ * Spreads requests over several equivalent GeometryServer endpoints, for
+ * bulk jobs that one server can't keep up with.
+ *
+ * Long routes are split into batches of legs, one lengths request each, run
+ * in parallel. Each request goes to the endpoint with the fewest requests
+ * outstanding, never more than the per-endpoint limit at once; when every
+ * endpoint is at its limit, requests wait for one to finish. A request that
+ * fails is retried on an endpoint it hasn't tried yet.
+ *
+ * An endpoint that fails DOWN_AFTER_FAILURES requests in a row is taken out
+ * of rotation (used only when no other endpoint is left) and probed with a
+ * small request every health check interval until it answers again. The
+ * probe counts against the per-endpoint limit, and is skipped while the
+ * endpoint is at it.
+ *
+ * Thread safe. shutdown() stops the worker threads.
+ *
+ * @author Tom
+ *
+ */
+public class BalancedService {
+
+	/** default limit of concurrent requests to one endpoint */
+	public static final int DEFAULT_MAX_CONCURRENT = 4;
+
+	/** default legs per lengths request */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/** default seconds between probes of endpoints that are down */
+	public static final int DEFAULT_HEALTH_CHECK_SECONDS = 10;
+
+	/** consecutive failures that take an endpoint out of rotation */
+	public static final int DOWN_AFTER_FAILURES = 3;
+
+	/** the endpoints */
+	private Endpoint[] mEndpoints;
+
+	/** legs per lengths request */
+	private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+	/** runs the requests, enough threads to fill every endpoint */
+	private ExecutorService mExecutor;
+
+	/** probes endpoints that are down */
+	private ScheduledExecutorService mHealthCheck;
+
+	/**
+	 * constructor, with the default limits
+	 * @param serviceUrls the GeometryServer urls, all equivalent
+	 */
+	public BalancedService(String... serviceUrls) {
+		this(DEFAULT_MAX_CONCURRENT, DEFAULT_HEALTH_CHECK_SECONDS, serviceUrls);
+	}
+
+	/**
+	 * constructor
+	 * @param maxConcurrent the most requests outstanding to one endpoint
+	 * @param healthCheckSeconds seconds between probes of endpoints that are
+	 *            down
+	 * @param serviceUrls the GeometryServer urls, all equivalent
+	 */
+	public BalancedService(int maxConcurrent, int healthCheckSeconds, String... serviceUrls) {
+
+		if (serviceUrls.length == 0)
+			throw new IllegalArgumentException("No endpoints");
+		if (maxConcurrent < 1)
+			throw new IllegalArgumentException("maxConcurrent must be positive");
+		if (healthCheckSeconds < 1)
+			throw new IllegalArgumentException("healthCheckSeconds must be positive");
+
+		mEndpoints = new Endpoint[serviceUrls.length];
+		for (int i = 0; i < serviceUrls.length; i++)
+			mEndpoints[i] = new Endpoint(serviceUrls[i], maxConcurrent);
+
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "BalancedService");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		mExecutor = Executors.newFixedThreadPool(maxConcurrent * serviceUrls.length, daemons);
+		mHealthCheck = Executors.newSingleThreadScheduledExecutor(daemons);
+		mHealthCheck.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkHealth();
+			}
+		}, healthCheckSeconds, healthCheckSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param legs legs per lengths request
+	 */
+	public synchronized void setBatchSize(int legs) {
+		if (legs < 1)
+			throw new IllegalArgumentException("Batch size must be positive");
+		mBatchSize = legs;
+	}
+
+	/**
+	 * @return the number of endpoints
+	 */
+	public int getEndpointCount() {
+		return mEndpoints.length;
+	}
+
+	/**
+	 * @param index the endpoint index, in constructor order
+	 * @return requests completed by the endpoint, successful or not
+	 */
+	public synchronized int getRequestCount(int index) {
+		return mEndpoints[index].requests;
+	}
+
+	/**
+	 * @param index the endpoint index, in constructor order
+	 * @return false while the endpoint is out of rotation
+	 */
+	public synchronized boolean isUp(int index) {
+		return mEndpoints[index].up;
+	}
+
+	/**
+	 * Stops the worker and health check threads
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+		mHealthCheck.shutdownNow();
+	}
+
+	/**
+	 * Query for the distance between two points, on the least busy endpoint
+	 * @param point1 the start point (lat/lon, WGS84)
+	 * @param point2 the end point (lat/lon, WGS84)
+	 * @return the distance between the input points, in miles
+	 * @throws ServiceException if every endpoint failed
+	 */
+	public double GetDistance(final Point point1, final Point point2) throws ServiceException {
+
+		return call(new Request() {
+			public double send(Service service) throws ServiceException {
+				return service.GetDistance(point1, point2);
+			}
+		});
+	}
+
+	/**
+	 * Query for the length of a route, in batches of legs sent in parallel
+	 * @param route the route vertices, in order (lat/lon, WGS84)
+	 * @param legs receives the route.size() - 1 leg lengths in miles, may be null
+	 * @return the total length of the route, in miles
+	 * @throws ServiceException if a batch failed on every endpoint
+	 */
+	public double GetRouteLength(final PointBuffer route, final double[] legs) throws ServiceException {
+
+		int legCount = route.size() - 1;
+		if (legCount < 1)
+			return 0.0;
+
+		int batchSize;
+		synchronized (this) {
+			batchSize = mBatchSize;
+		}
+
+		ArrayList<Future<Double>> batches = new ArrayList<Future<Double>>();
+		for (int first = 0; first < legCount; first += batchSize) {
+
+			final int offset = first;
+			final int count = Math.min(batchSize, legCount - first);
+
+			batches.add(mExecutor.submit(new Callable<Double>() {
+				public Double call() throws ServiceException {
+
+					final double[] batchLegs = legs != null ? new double[count] : null;
+					double length = BalancedService.this.call(new Request() {
+						public double send(Service service) throws ServiceException {
+							return service.GetRouteLength(route, offset, count + 1, batchLegs);
+						}
+					});
+
+					if (legs != null)
+						System.arraycopy(batchLegs, 0, legs, offset, count);
+					return Double.valueOf(length);
+				}
+			}));
+		}
+
+		try {
+
+			double total = 0.0;
+			for (Future<Double> batch : batches)
+				total += batch.get().doubleValue();
+			return total;
+
+		} catch (ExecutionException e) {
+
+			Throwable cause = e.getCause();
+			if (cause instanceof ServiceException)
+				throw (ServiceException) cause;
+			throw new ServiceException(cause);
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+
+		} finally {
+
+			/* nothing left to wait for after a failure */
+			for (Future<Double> batch : batches)
+				batch.cancel(true);
+		}
+	}
+
+	/**
+	 * Sends a request, trying each endpoint at most once until one answers
+	 */
+	private double call(Request request) throws ServiceException {
+
+		boolean[] tried = new boolean[mEndpoints.length];
+		ServiceException lastError = null;
+
+		while (true) {
+
+			Endpoint endpoint;
+			try {
+				endpoint = acquire(tried);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServiceException(e);
+			}
+
+			if (endpoint == null)
+				throw lastError;
+
+			/* released however the request ends, or the slot is lost */
+			Service service = endpoint.takeService();
+			boolean success = false;
+			try {
+				double result = request.send(service);
+				success = true;
+				return result;
+			} catch (ServiceException e) {
+				lastError = e;
+			} finally {
+				release(endpoint, service, success);
+			}
+		}
+	}
+
+	/**
+	 * Picks the endpoint for a request, waiting while the candidates are all
+	 * at their limit
+	 * @param tried endpoints already tried by this request, updated
+	 * @return the endpoint, its outstanding count incremented, or null if
+	 *         every endpoint has been tried
+	 */
+	private synchronized Endpoint acquire(boolean[] tried) throws InterruptedException {
+
+		while (true) {
+
+			/* endpoints that are up, unless none is left untried */
+			boolean anyUp = false;
+			boolean anyLeft = false;
+			for (int i = 0; i < mEndpoints.length; i++) {
+				if (!tried[i]) {
+					anyLeft = true;
+					anyUp |= mEndpoints[i].up;
+				}
+			}
+
+			if (!anyLeft)
+				return null;
+
+			/* least outstanding requests, with room for another */
+			int best = -1;
+			for (int i = 0; i < mEndpoints.length; i++) {
+
+				Endpoint endpoint = mEndpoints[i];
+				if (tried[i] || (anyUp && !endpoint.up)
+						|| endpoint.outstanding >= endpoint.maxConcurrent)
+					continue;
+
+				if (best < 0 || endpoint.outstanding < mEndpoints[best].outstanding)
+					best = i;
+			}
+
+			if (best >= 0) {
+				tried[best] = true;
+				mEndpoints[best].outstanding++;
+				return mEndpoints[best];
+			}
+
+			wait();
+		}
+	}
+
+	/**
+	 * Returns an endpoint after a request, recording how it went
+	 */
+	private synchronized void release(Endpoint endpoint, Service service, boolean success) {
+
+		endpoint.outstanding--;
+		endpoint.requests++;
+		endpoint.idle.add(service);
+
+		if (success) {
+			endpoint.failures = 0;
+			endpoint.up = true;
+		} else if (++endpoint.failures >= DOWN_AFTER_FAILURES) {
+			endpoint.up = false;
+		}
+
+		notifyAll();
+	}
+
+	/**
+	 * Probes every endpoint that is down, on the health check thread
+	 */
+	private void checkHealth() {
+
+		for (Endpoint endpoint : mEndpoints) {
+
+			/* the probe takes a slot like any request, if there is one */
+			synchronized (this) {
+				if (endpoint.up || endpoint.outstanding >= endpoint.maxConcurrent)
+					continue;
+				endpoint.outstanding++;
+			}
+
+			/* a small real request, the service has no ping */
+			Service service = endpoint.takeService();
+			boolean success = false;
+			try {
+				service.GetDistance(new Point(0.0, 0.0), new Point(0.0, 1.0));
+				success = true;
+			} catch (ServiceException e) {
+				/* still down */
+			} finally {
+				synchronized (this) {
+					endpoint.outstanding--;
+					endpoint.idle.add(service);
+					if (success) {
+						endpoint.failures = 0;
+						endpoint.up = true;
+					}
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * One request, sent to whichever endpoint is chosen
+	 */
+	private interface Request {
+		double send(Service service) throws ServiceException;
+	}
+
+	/**
+	 * One GeometryServer and its state, guarded by the BalancedService
+	 */
+	private class Endpoint {
+
+		final String url;
+		final int maxConcurrent;
+
+		/** requests sent and not yet answered */
+		int outstanding;
+		/** requests answered or failed */
+		int requests;
+		/** failures since the last success */
+		int failures;
+		/** false while out of rotation */
+		boolean up = true;
+
+		/** Services not in use, one request at a time each */
+		ArrayList<Service> idle = new ArrayList<Service>();
+
+		Endpoint(String url, int maxConcurrent) {
+			this.url = url;
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		Service takeService() {
+			synchronized (BalancedService.this) {
+				int size = idle.size();
+				if (size > 0)
+					return idle.remove(size - 1);
+			}
+			return new Service(url);
+		}
+	}
+}
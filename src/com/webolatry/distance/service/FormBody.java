@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * The parameters of one request, form-encoded (UTF-8, percent-escaped) into
+ * a byte buffer that is kept and reused from request to request.
+ *
+ * The same bytes serve as the query string of a GET or as the body of a POST;
+ * as an HttpEntity the body can optionally be gzip compressed. Parameter
+ * values can be appended piecewise through Appendable, so Gson can write
+ * json straight into the buffer without an intermediate String.
+ *
+ * Not thread safe, one request at a time.
+ *
+ * @author Tom
+ *
+ */
+class FormBody extends AbstractHttpEntity implements Appendable {
+
+	private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
+	private static final String GZIP = "gzip";
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6',
+			'7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	/** gzip member header: magic, deflate, no flags, no time, unknown os */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0,
+			0, 0, 0, 0, (byte) 0xff };
+
+	/** the form-encoded parameters */
+	private byte[] mBuffer = new byte[4096];
+	private int mLength;
+
+	/** the gzip compressed parameters, valid if mCompressed */
+	private byte[] mGzipBuffer = new byte[1024];
+	private int mGzipLength;
+	private boolean mCompressed;
+
+	/** high surrogate waiting for its low half */
+	private char mPendingSurrogate;
+
+	/* reused for every compression */
+	private Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+	private CRC32 mCrc = new CRC32();
+
+	FormBody() {
+		setContentType(CONTENT_TYPE);
+	}
+
+	/**
+	 * Empties the buffer for a new request
+	 */
+	void reset() {
+		mLength = 0;
+		mCompressed = false;
+		mPendingSurrogate = 0;
+		setContentEncoding((String) null);
+	}
+
+	/**
+	 * Adds a complete parameter
+	 */
+	void add(String name, String value) {
+		begin(name);
+		append(value);
+	}
+
+	/**
+	 * Starts a parameter, whose value is then appended
+	 */
+	void begin(String name) {
+		if (mLength > 0)
+			put((byte) '&');
+		append(name);
+		put((byte) '=');
+	}
+
+	/**
+	 * @return the number of form-encoded bytes
+	 */
+	int length() {
+		return mLength;
+	}
+
+	/**
+	 * @return the parameters as a query string
+	 */
+	String toQueryString() {
+
+		/* every byte is ASCII, so each is one char */
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++)
+			chars[i] = (char) mBuffer[i];
+		return new String(chars);
+	}
+
+	/**
+	 * gzip compresses the parameters, making the entity the compressed bytes
+	 * with a gzip Content-Encoding
+	 */
+	void compress() {
+
+		mGzipLength = 0;
+		ensureGzipCapacity(GZIP_HEADER.length);
+		System.arraycopy(GZIP_HEADER, 0, mGzipBuffer, 0, GZIP_HEADER.length);
+		mGzipLength = GZIP_HEADER.length;
+
+		mDeflater.reset();
+		mDeflater.setInput(mBuffer, 0, mLength);
+		mDeflater.finish();
+		while (!mDeflater.finished()) {
+			ensureGzipCapacity(mGzipLength + 512);
+			mGzipLength += mDeflater.deflate(mGzipBuffer, mGzipLength,
+					mGzipBuffer.length - mGzipLength);
+		}
+
+		mCrc.reset();
+		mCrc.update(mBuffer, 0, mLength);
+
+		/* trailer: crc and uncompressed size, little-endian */
+		ensureGzipCapacity(mGzipLength + 8);
+		putIntLE((int) mCrc.getValue());
+		putIntLE(mLength);
+
+		mCompressed = true;
+		setContentEncoding(GZIP);
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) {
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end) {
+		for (int i = start; i < end; i++)
+			append(csq.charAt(i));
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) {
+
+		if (isUnreserved(c)) {
+			put((byte) c);
+		} else if (c < 0x80) {
+			escape(c);
+		} else if (c < 0x800) {
+			escape(0xc0 | (c >> 6));
+			escape(0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			mPendingSurrogate = c;
+		} else if (Character.isLowSurrogate(c) && mPendingSurrogate != 0) {
+			int code = Character.toCodePoint(mPendingSurrogate, c);
+			mPendingSurrogate = 0;
+			escape(0xf0 | (code >> 18));
+			escape(0x80 | ((code >> 12) & 0x3f));
+			escape(0x80 | ((code >> 6) & 0x3f));
+			escape(0x80 | (code & 0x3f));
+		} else if (Character.isLowSurrogate(c)) {
+			/* unpaired, as String.getBytes would */
+			escape('?');
+		} else {
+			escape(0xe0 | (c >> 12));
+			escape(0x80 | ((c >> 6) & 0x3f));
+			escape(0x80 | (c & 0x3f));
+		}
+		return this;
+	}
+
+	/* HttpEntity */
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return mCompressed ? mGzipLength : mLength;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		return mCompressed ? new ByteArrayInputStream(mGzipBuffer, 0,
+				mGzipLength) : new ByteArrayInputStream(mBuffer, 0, mLength);
+	}
+
+	@Override
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (mCompressed)
+			outstream.write(mGzipBuffer, 0, mGzipLength);
+		else
+			outstream.write(mBuffer, 0, mLength);
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * @return true for the chars that are sent as-is (RFC 3986 unreserved)
+	 */
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_'
+				|| c == '~';
+	}
+
+	private void escape(int b) {
+		ensureCapacity(mLength + 3);
+		mBuffer[mLength++] = '%';
+		mBuffer[mLength++] = HEX[(b >> 4) & 0xf];
+		mBuffer[mLength++] = HEX[b & 0xf];
+	}
+
+	private void put(byte b) {
+		ensureCapacity(mLength + 1);
+		mBuffer[mLength++] = b;
+	}
+
+	private void putIntLE(int value) {
+		mGzipBuffer[mGzipLength++] = (byte) value;
+		mGzipBuffer[mGzipLength++] = (byte) (value >> 8);
+		mGzipBuffer[mGzipLength++] = (byte) (value >> 16);
+		mGzipBuffer[mGzipLength++] = (byte) (value >> 24);
+	}
+
+	private void ensureCapacity(int capacity) {
+
+		if (capacity <= mBuffer.length)
+			return;
+
+		byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+		System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+		mBuffer = buffer;
+	}
+
+	private void ensureGzipCapacity(int capacity) {
+
+		if (capacity <= mGzipBuffer.length)
+			return;
+
+		byte[] buffer = new byte[Math.max(capacity, mGzipBuffer.length * 2)];
+		System.arraycopy(mGzipBuffer, 0, buffer, 0, mGzipLength);
+		mGzipBuffer = buffer;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at 
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+
+package com.webolatry.distance.service;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * a single-path polyline of a lengths query (annotated for json)
+ * 
+ * @author Tom
+ * @see http://sampleserver3.arcgisonline.com/ArcGIS/SDK/REST/geometry.html
+ */
+public class Polyline {
+
+	/**
+	 * constructor for a two-vertex polyline (one route leg)
+	 */
+	public Polyline(double x1, double y1, double x2, double y2) {
+		paths = new double[][][] { { { x1, y1 }, { x2, y2 } } };
+	}
+
+	@SerializedName("paths")
+	public double[][][] paths;
+}
@@ -30,7 +30,24 @@ import com.google.gson.annotations.SerializedName;
  */
 public class Response {
 
+	/** null if the response has no distance */
 	@SerializedName("distance")
-	public double distance;
+	public Double distance;
+
+	/** set instead of the distance when the request failed */
+	@SerializedName("error")
+	public Error error;
+
+	/**
+	 * the error a server returns, with http status 200, for a failed request
+	 */
+	public static class Error {
+
+		@SerializedName("code")
+		public int code;
+
+		@SerializedName("message")
+		public String message;
+	}
 }
 
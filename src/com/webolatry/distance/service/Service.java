@@ -24,11 +24,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.DefaultHttpClient;
 
 /* http://code.google.com/p/google-gson, version 2.2.2 used */
@@ -36,13 +41,92 @@ import com.google.gson.Gson;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
-import android.net.Uri;
+import com.webolatry.distance.geo.PointBuffer;
 
+/**
+ * Client of an ArcGIS GeometryServer, by default the ArcGIS Online sample
+ * server.
+ *
+ * Small requests are sent as a GET, with the parameters in the query
+ * string. Once the form-encoded parameters grow beyond the POST threshold
+ * (long routes) they are sent as a POST body instead, which has no URL
+ * length limit, optionally gzip compressed. Responses are requested gzip
+ * compressed either way.
+ *
+ * The parameters are encoded into one reused buffer, so a Service sends
+ * one request at a time; use a Service per thread for concurrent requests.
+ *
+ * @author Tom
+ *
+ */
 public class Service {
 
+	/** the ESRI sample GeometryServer, used unless another is given */
+	public static final String DEFAULT_SERVICE_URL = "http://sampleserver3.arcgisonline.com/ArcGIS/rest/services/Geometry/GeometryServer/";
+
+	/**
+	 * default POST threshold, in form-encoded bytes. Comfortably below the
+	 * URL limits of common servers and proxies (2K to 8K).
+	 */
+	public static final int DEFAULT_POST_THRESHOLD = 2048;
+
+	/* the GeometryServer operations are relative to this, ends with '/' */
+	private String mServiceUrl;
+
 	/* json parser/formatter */
 	private Gson mGson = new Gson();
 
+	/* the request parameters, reused for every request */
+	private FormBody mForm = new FormBody();
+
+	/* parameters longer than this are posted */
+	private int mPostThreshold = DEFAULT_POST_THRESHOLD;
+
+	/* true to gzip POST bodies */
+	private boolean mCompressRequests;
+
+	/**
+	 * constructor, for the ESRI sample GeometryServer
+	 */
+	public Service() {
+		this(DEFAULT_SERVICE_URL);
+	}
+
+	/**
+	 * constructor
+	 * @param serviceUrl the GeometryServer, for example
+	 *            http://host/ArcGIS/rest/services/Geometry/GeometryServer
+	 */
+	public Service(String serviceUrl) {
+		mServiceUrl = serviceUrl.endsWith("/") ? serviceUrl : serviceUrl + "/";
+	}
+
+	/**
+	 * @return the GeometryServer url, ending with '/'
+	 */
+	public String getServiceUrl() {
+		return mServiceUrl;
+	}
+
+	/**
+	 * Sets the size from which requests are sent as a POST
+	 * @param bytes form-encoded parameter bytes above which to POST, 0 to
+	 *            always POST, Integer.MAX_VALUE to always GET
+	 */
+	public synchronized void setPostThreshold(int bytes) {
+		mPostThreshold = bytes;
+	}
+
+	/**
+	 * Enables gzip compression of POST bodies. Only for servers that accept
+	 * a gzip Content-Encoding on requests; off by default, as ArcGIS Server
+	 * does not.
+	 * @param compress true to compress
+	 */
+	public synchronized void setCompressRequests(boolean compress) {
+		mCompressRequests = compress;
+	}
+
 	/**
 	 * Query the ArcGIS Online service for the distance between two points
 	 * @param point1 the start point (lat/lon, WGS84)
@@ -50,7 +134,7 @@ public class Service {
 	 * @return the distance between the input points, in miles
 	 * @throws ServiceException
 	 */
-	public double GetDistance(Point point1, Point point2) throws ServiceException {
+	public synchronized double GetDistance(Point point1, Point point2) throws ServiceException {
 
 		try {
 
@@ -60,41 +144,48 @@ public class Service {
 			/* prepare point 2 */
 			Geometry geometry2 = new Geometry(point2);
 
-			/* convert point 1 data to a json string */
-			String geometry1Json = mGson.toJson(geometry1);
-
-			/* convert point 2 data to a json string */
-			String geometry2Json = mGson.toJson(geometry2);
-
-			/* build the get request */
-			Uri uri = new Uri.Builder()
-					.scheme("http")
-					// ESRI test server
-					.authority("sampleserver3.arcgisonline.com")
-					// Distance api
-					.path("ArcGIS/rest/services/Geometry/GeometryServer/distance")
-					// request json response
-					.appendQueryParameter("f", "json")
-					// points are GCS_WGS_1984
-					.appendQueryParameter("sr", "4326")
-					// request geodesic distance
-					.appendQueryParameter("geodesic", "true")
-					// request return in esriSRUnit_SurveyMile
-					.appendQueryParameter("distanceUnit", "9035")
-					// from here
-					.appendQueryParameter("geometry1", geometry1Json)
-					// to here
-					.appendQueryParameter("geometry2", geometry2Json).build();
+			/* build the request parameters */
+			mForm.reset();
+			// request json response
+			mForm.add("f", "json");
+			// points are GCS_WGS_1984
+			mForm.add("sr", "4326");
+			// request geodesic distance
+			mForm.add("geodesic", "true");
+			// request return in esriSRUnit_SurveyMile
+			mForm.add("distanceUnit", "9035");
+			// from here, point 1 as json
+			mForm.begin("geometry1");
+			mGson.toJson(geometry1, mForm);
+			// to here, point 2 as json
+			mForm.begin("geometry2");
+			mGson.toJson(geometry2, mForm);
 
 			/* send request to server, get response */
-			InputStream source = retrieveStream(uri.toString());
+			InputStream source = retrieveStream("distance");
 			Reader reader = new InputStreamReader(source);
 
 			/* parse the response */
 			Response response = mGson.fromJson(reader, Response.class);
 
+			/* errors come back as json with http status 200, and no distance */
+			if (response == null) {
+				throw new ServiceException("The server returned an unexpected response");
+			}
+			if (response.error != null) {
+				throw new ServiceException("The server returned error "
+						+ response.error.code + ": " + response.error.message);
+			}
+			if (response.distance == null) {
+				throw new ServiceException("The server returned no distance");
+			}
+
 			/* return the distance */
-			return response.distance;
+			return response.distance.doubleValue();
+
+		} catch (ServiceException e) {
+
+			throw e;
 
 		} catch (IllegalArgumentException e) {
 
@@ -119,35 +210,146 @@ public class Service {
 	}
 
 	/**
-	 * Http get with specified uri
-	 * @param uri the url and encoded input parameters
-	 * @return the response stream from the server
+	 * Query the ArcGIS Online service for the length of a route, in a single
+	 * request. Each leg is sent as its own polyline so the server returns
+	 * the per-leg lengths along with the total.
+	 * @param route the route vertices, in order (lat/lon, WGS84)
+	 * @param legs receives the route.size() - 1 leg lengths in miles, may be null
+	 * @return the total length of the route, in miles
+	 * @throws ServiceException
+	 */
+	public double GetRouteLength(PointBuffer route, double[] legs) throws ServiceException {
+		return GetRouteLength(route, 0, route.size(), legs);
+	}
+
+	/**
+	 * Query the ArcGIS Online service for the length of part of a route, in
+	 * a single request
+	 * @param route the route vertices, in order (lat/lon, WGS84)
+	 * @param offset index of the first vertex
+	 * @param vertexCount number of vertices
+	 * @param legs receives the vertexCount - 1 leg lengths in miles, from
+	 *            index 0, may be null
+	 * @return the total length of that part of the route, in miles
+	 * @throws ServiceException
+	 */
+	public synchronized double GetRouteLength(PointBuffer route, int offset, int vertexCount, double[] legs) throws ServiceException {
+
+		int count = vertexCount - 1;
+		if (count < 1)
+			return 0.0;
+
+		try {
+
+			/* one two-vertex polyline per leg */
+			ArrayList<Polyline> polylines = new ArrayList<Polyline>(count);
+			for (int i = offset; i < offset + count; i++) {
+				polylines.add(new Polyline(route.getX(i), route.getY(i),
+						route.getX(i + 1), route.getY(i + 1)));
+			}
+
+			/* build the request parameters */
+			mForm.reset();
+			// request json response
+			mForm.add("f", "json");
+			// points are GCS_WGS_1984
+			mForm.add("sr", "4326");
+			// request geodesic lengths
+			mForm.add("geodesic", "true");
+			// request return in esriSRUnit_SurveyMile
+			mForm.add("lengthUnit", "9035");
+			// the route legs, as json
+			mForm.begin("polylines");
+			mGson.toJson(polylines, mForm);
+
+			/* send request to server, get response */
+			InputStream source = retrieveStream("lengths");
+			Reader reader = new InputStreamReader(source);
+
+			/* parse the response */
+			LengthsResponse response = mGson.fromJson(reader, LengthsResponse.class);
+
+			if (response == null || response.lengths == null
+					|| response.lengths.length != count) {
+				throw new ServiceException("The server returned an unexpected response");
+			}
+
+			/* sum the legs */
+			double total = 0.0;
+			for (int i = 0; i < count; i++) {
+				total += response.lengths[i];
+			}
+
+			if (legs != null) {
+				System.arraycopy(response.lengths, 0, legs, 0, count);
+			}
+
+			return total;
+
+		} catch (ServiceException e) {
+
+			throw e;
+
+		} catch (Exception e) {
+
+			throw new ServiceException(e);
+		}
+	}
+
+	/**
+	 * Sends the parameters in mForm to a GeometryServer operation, as a GET
+	 * or, above the threshold, a POST
+	 * @param operation the operation name, such as "distance"
+	 * @return the response stream from the server, decompressed
 	 */
-	private InputStream retrieveStream(String uri) throws IllegalArgumentException, IOException, ServiceException {
+	private InputStream retrieveStream(String operation) throws IllegalArgumentException, IOException, ServiceException {
 
-		HttpGet getRequest = new HttpGet(uri);
+		HttpUriRequest request;
+		if (mForm.length() > mPostThreshold) {
+
+			HttpPost postRequest = new HttpPost(mServiceUrl + operation);
+			if (mCompressRequests) {
+				mForm.compress();
+			}
+			postRequest.setEntity(mForm);
+			request = postRequest;
+
+		} else {
+
+			request = new HttpGet(mServiceUrl + operation + "?" + mForm.toQueryString());
+		}
+
+		request.addHeader("Accept-Encoding", "gzip");
 
 		try {
 
 			DefaultHttpClient client = new DefaultHttpClient();
-			HttpResponse getResponse = client.execute(getRequest);
+			HttpResponse response = client.execute(request);
+
+			int status = response.getStatusLine().getStatusCode();
 
-			int status = getResponse.getStatusLine().getStatusCode();
-						
 			if (status != HttpStatus.SC_OK) {
-				throw new ServiceException(getResponse.getStatusLine().getReasonPhrase());
+				throw new ServiceException(response.getStatusLine().getReasonPhrase());
 			}
 
-			HttpEntity getResponseEntity = getResponse.getEntity();
-			if (getResponseEntity == null) {
+			HttpEntity responseEntity = response.getEntity();
+			if (responseEntity == null) {
 				throw new ServiceException("The server did not respond");
 			}
 
-			return getResponseEntity.getContent();
+			InputStream content = responseEntity.getContent();
+
+			/* the client doesn't decompress by itself */
+			Header encoding = responseEntity.getContentEncoding();
+			if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+				content = new GZIPInputStream(content);
+			}
+
+			return content;
 
 		} catch (IOException e) {
 
-			getRequest.abort();
+			request.abort();
 			throw e;
 		}
 	}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+/**
+ * Receives raw gps fixes as primitives. This is the allocation-free
+ * counterpart of LocationListener.onLocationChanged, and unlike
+ * android.location.Location it can be used on a plain JVM.
+ *
+ * @author Tom
+ *
+ */
+public interface FixListener {
+
+	/**
+	 * Called for every fix
+	 *
+	 * @param time utc time of the fix, in milliseconds since the epoch
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param altitude meters above the WGS84 ellipsoid, NaN if unknown
+	 * @param accuracy estimated accuracy in meters, NaN if unknown
+	 * @param speed ground speed in meters/second, NaN if unknown
+	 * @param bearing degrees east of true north, NaN if unknown
+	 */
+	void onFix(long time, double x, double y, double altitude,
+			float accuracy, float speed, float bearing);
+}
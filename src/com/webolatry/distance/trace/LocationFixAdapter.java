@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import android.location.Location;
+import android.location.LocationListener;
+
+/**
+ * Delivers replayed fixes to a LocationListener, exactly as the
+ * LocationManager would. A single Location instance is reused for every fix,
+ * so the listener must copy anything it keeps (the activity already does).
+ *
+ * @author Tom
+ *
+ */
+public class LocationFixAdapter implements FixListener {
+
+	/** receives the fixes */
+	private LocationListener mListener;
+	/** reused for every fix */
+	private Location mLocation;
+
+	/**
+	 * constructor
+	 *
+	 * @param listener receives the fixes
+	 * @param provider the provider name reported in each Location
+	 */
+	public LocationFixAdapter(LocationListener listener, String provider) {
+		mListener = listener;
+		mLocation = new Location(provider);
+	}
+
+	public void onFix(long time, double x, double y, double altitude,
+			float accuracy, float speed, float bearing) {
+
+		mLocation.setTime(time);
+		mLocation.setLongitude(x);
+		mLocation.setLatitude(y);
+
+		if (Double.isNaN(altitude))
+			mLocation.removeAltitude();
+		else
+			mLocation.setAltitude(altitude);
+
+		if (Float.isNaN(accuracy))
+			mLocation.removeAccuracy();
+		else
+			mLocation.setAccuracy(accuracy);
+
+		if (Float.isNaN(speed))
+			mLocation.removeSpeed();
+		else
+			mLocation.setSpeed(speed);
+
+		if (Float.isNaN(bearing))
+			mLocation.removeBearing();
+		else
+			mLocation.setBearing(bearing);
+
+		mListener.onLocationChanged(mLocation);
+	}
+}
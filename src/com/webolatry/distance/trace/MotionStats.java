@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+
+/**
+ * Rolling speed, bearing, closing rate and time of arrival over the live fix
+ * stream, computed from the fixes themselves rather than the receiver's
+ * speed and bearing fields.
+ *
+ * Recent fixes are kept in a ring with their distance to the target. Each
+ * rate is the change across its time window: speed and bearing are the
+ * straight move from the oldest fix of the speed window to the newest, and
+ * the closing rate is how much nearer the target got over the closing
+ * window. Summing the distances between fixes instead would count gps
+ * jitter as travel, which at 100 Hz swamps walking speeds; the straight move
+ * cuts corners only on turns tighter than the window. A fix costs one
+ * distance and constant bookkeeping, however long the windows, and
+ * allocates nothing.
+ *
+ * The ring holds a fixed number of fixes. If fixes come in faster than it
+ * can hold for a window, that window shrinks to what the ring holds.
+ * Fixes not newer than the previous one are ignored.
+ *
+ * Not thread safe, feed and read it from one thread (the UI thread).
+ *
+ * @author Tom
+ *
+ */
+public class MotionStats implements FixListener {
+
+	/** default speed and bearing window, milliseconds */
+	public static final long DEFAULT_SPEED_WINDOW = 5000;
+
+	/** default closing rate window, milliseconds */
+	public static final long DEFAULT_CLOSING_WINDOW = 30000;
+
+	/** default fixes kept, 30 seconds at 100 Hz */
+	public static final int DEFAULT_CAPACITY = 3072;
+
+	/** slower closing rates, meters/second, give no arrival time */
+	public static final double MIN_CLOSING_RATE = 0.05;
+
+	/** shorter moves, meters, give no bearing */
+	public static final double MIN_BEARING_METERS = 1.0;
+
+	/** the windows, milliseconds */
+	private long mSpeedWindow;
+	private long mClosingWindow;
+
+	/** the ring of recent fixes, slot = sequence number % capacity */
+	private long[] mTimes;
+	private double[] mX;
+	private double[] mY;
+	/** meters to the target, NaN without one */
+	private double[] mToTarget;
+
+	/** sequence number of the next fix */
+	private long mNext;
+	/** sequence numbers of the oldest fix in each window */
+	private long mSpeedTail;
+	private long mClosingTail;
+
+	/** the target */
+	private boolean mHasTarget;
+	private double mTargetX;
+	private double mTargetY;
+
+	/**
+	 * constructor, with the default windows
+	 */
+	public MotionStats() {
+		this(DEFAULT_SPEED_WINDOW, DEFAULT_CLOSING_WINDOW, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * constructor
+	 *
+	 * @param speedWindow span of the speed and bearing, milliseconds
+	 * @param closingWindow span of the closing rate, milliseconds
+	 * @param capacity the most fixes kept, at least the windows times the
+	 *            fix rate
+	 */
+	public MotionStats(long speedWindow, long closingWindow, int capacity) {
+
+		if (speedWindow <= 0 || closingWindow <= 0)
+			throw new IllegalArgumentException("Windows must be positive");
+		if (capacity < 2)
+			throw new IllegalArgumentException("Capacity must be at least 2");
+
+		mSpeedWindow = speedWindow;
+		mClosingWindow = closingWindow;
+
+		mTimes = new long[capacity];
+		mX = new double[capacity];
+		mY = new double[capacity];
+		mToTarget = new double[capacity];
+	}
+
+	/**
+	 * Sets the point the closing rate and arrival time refer to. The fixes
+	 * already kept are measured against it, so the rate is available at once.
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 */
+	public void setTarget(double x, double y) {
+
+		mHasTarget = true;
+		mTargetX = x;
+		mTargetY = y;
+
+		for (long i = oldest(); i < mNext; i++) {
+			int slot = slot(i);
+			mToTarget[slot] = Ellipsoidal.distance(mX[slot], mY[slot], x, y);
+		}
+	}
+
+	/**
+	 * Removes the target
+	 */
+	public void clearTarget() {
+		mHasTarget = false;
+	}
+
+	/**
+	 * Forgets every fix, such as when the gps signal was lost
+	 */
+	public void reset() {
+		mNext = 0;
+		mSpeedTail = 0;
+		mClosingTail = 0;
+	}
+
+	public void onFix(long time, double x, double y, double altitude,
+			float accuracy, float speed, float bearing) {
+
+		int capacity = mTimes.length;
+
+		if (mNext > 0 && time <= mTimes[slot(mNext - 1)])
+			return;
+
+		int slot = slot(mNext);
+		mTimes[slot] = time;
+		mX[slot] = x;
+		mY[slot] = y;
+		mToTarget[slot] = mHasTarget ? Ellipsoidal.distance(x, y, mTargetX,
+				mTargetY) : Double.NaN;
+		mNext++;
+
+		/* the new fix overwrote the oldest if the ring was full */
+		long oldest = Math.max(0, mNext - capacity);
+		mSpeedTail = advance(Math.max(mSpeedTail, oldest), time - mSpeedWindow);
+		mClosingTail = advance(Math.max(mClosingTail, oldest), time
+				- mClosingWindow);
+	}
+
+	/**
+	 * @return the number of fixes in the longer window
+	 */
+	public int size() {
+		return (int) (mNext - oldest());
+	}
+
+	/**
+	 * @return ground speed over the speed window, meters/second, NaN with
+	 *         fewer than two fixes in it
+	 */
+	public double getSpeed() {
+
+		if (mNext - mSpeedTail < 2)
+			return Double.NaN;
+
+		int head = slot(mNext - 1);
+		int tail = slot(mSpeedTail);
+		return Ellipsoidal.distance(mX[tail], mY[tail], mX[head], mY[head])
+				* 1000.0 / (mTimes[head] - mTimes[tail]);
+	}
+
+	/**
+	 * @return direction of travel over the speed window, degrees east of true
+	 *         north, NaN if the net move is under MIN_BEARING_METERS
+	 */
+	public double getBearing() {
+
+		if (mNext - mSpeedTail < 2)
+			return Double.NaN;
+
+		int head = slot(mNext - 1);
+		int tail = slot(mSpeedTail);
+
+		double phi1 = Math.toRadians(mY[tail]);
+		double phi2 = Math.toRadians(mY[head]);
+		double dLambda = Math.toRadians(mX[head] - mX[tail]);
+
+		double east = Math.sin(dLambda) * Math.cos(phi2);
+		double north = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1)
+				* Math.cos(phi2) * Math.cos(dLambda);
+
+		/* the components are in earth radii */
+		double moved = Math.sqrt(east * east + north * north) * Ellipsoidal.A;
+		if (moved < MIN_BEARING_METERS)
+			return Double.NaN;
+
+		double bearing = Math.toDegrees(Math.atan2(east, north));
+		return bearing < 0.0 ? bearing + 360.0 : bearing;
+	}
+
+	/**
+	 * @return meters from the latest fix to the target, NaN without a target
+	 *         or fix
+	 */
+	public double getDistanceToTarget() {
+
+		if (!mHasTarget || mNext == 0)
+			return Double.NaN;
+		return mToTarget[slot(mNext - 1)];
+	}
+
+	/**
+	 * @return how fast the target is getting nearer over the closing window,
+	 *         meters/second (negative when moving away), NaN without a target
+	 *         or with fewer than two fixes in the window
+	 */
+	public double getClosingRate() {
+
+		if (!mHasTarget || mNext - mClosingTail < 2)
+			return Double.NaN;
+
+		int head = slot(mNext - 1);
+		int tail = slot(mClosingTail);
+		return (mToTarget[tail] - mToTarget[head]) * 1000.0
+				/ (mTimes[head] - mTimes[tail]);
+	}
+
+	/**
+	 * @return seconds until the target is reached at the current closing
+	 *         rate, NaN unless closing faster than MIN_CLOSING_RATE
+	 */
+	public double getSecondsToTarget() {
+
+		double rate = getClosingRate();
+		if (!(rate >= MIN_CLOSING_RATE))
+			return Double.NaN;
+		return getDistanceToTarget() / rate;
+	}
+
+	/**
+	 * @return the oldest sequence number still in the ring
+	 */
+	private long oldest() {
+		return Math.max(0, Math.max(mNext - mTimes.length,
+				Math.min(mSpeedTail, mClosingTail)));
+	}
+
+	/**
+	 * @return the first sequence number from tail on with a time at or after
+	 *         start, never past the newest fix
+	 */
+	private long advance(long tail, long start) {
+		while (tail < mNext - 1 && mTimes[slot(tail)] < start)
+			tail++;
+		return tail;
+	}
+
+	private int slot(long sequence) {
+		return (int) (sequence % mTimes.length);
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A recorded gps trace, held in memory as primitive arrays so replay isn't
+ * bound by file i/o or allocation.
+ *
+ * File format (big-endian): int magic, int version, then one record per fix
+ * of long time, double x, double y, float altitude, float accuracy, float
+ * speed, float bearing. Unknown values are stored as NaN.
+ *
+ * @author Tom
+ *
+ */
+public class Trace {
+
+	/** identifies a trace stream ("DTRC") */
+	static final int MAGIC = 0x44545243;
+	/** current trace format version */
+	static final int VERSION = 1;
+
+	/** number of fixes */
+	private int mSize;
+	/** fix times, milliseconds since the epoch */
+	private long[] mTime;
+	/** fix longitudes */
+	private double[] mX;
+	/** fix latitudes */
+	private double[] mY;
+	/** fix altitudes */
+	private float[] mAltitude;
+	/** fix accuracies */
+	private float[] mAccuracy;
+	/** fix speeds */
+	private float[] mSpeed;
+	/** fix bearings */
+	private float[] mBearing;
+
+	/**
+	 * constructor for an empty trace
+	 *
+	 * @param capacity initial number of fixes
+	 */
+	public Trace(int capacity) {
+
+		capacity = Math.max(capacity, 16);
+		mTime = new long[capacity];
+		mX = new double[capacity];
+		mY = new double[capacity];
+		mAltitude = new float[capacity];
+		mAccuracy = new float[capacity];
+		mSpeed = new float[capacity];
+		mBearing = new float[capacity];
+	}
+
+	/**
+	 * Loads a trace written by TraceRecorder
+	 *
+	 * @param input the trace stream (not closed)
+	 * @return the loaded trace
+	 * @throws IOException if the stream is not a trace, or can't be read
+	 */
+	public static Trace read(InputStream input) throws IOException {
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(
+				input));
+
+		if (dis.readInt() != MAGIC)
+			throw new IOException("Not a gps trace");
+		int version = dis.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported gps trace version " + version);
+
+		Trace trace = new Trace(1024);
+
+		while (true) {
+
+			long time;
+			try {
+				time = dis.readLong();
+			} catch (EOFException e) {
+				/* clean end of trace */
+				break;
+			}
+
+			/* a record cut short is an error (EOFException) */
+			double x = dis.readDouble();
+			double y = dis.readDouble();
+			float altitude = dis.readFloat();
+			float accuracy = dis.readFloat();
+			float speed = dis.readFloat();
+			float bearing = dis.readFloat();
+
+			trace.add(time, x, y, altitude, accuracy, speed, bearing);
+		}
+
+		return trace;
+	}
+
+	/**
+	 * Appends a fix
+	 */
+	public void add(long time, double x, double y, double altitude,
+			float accuracy, float speed, float bearing) {
+
+		if (mSize == mTime.length)
+			grow();
+
+		mTime[mSize] = time;
+		mX[mSize] = x;
+		mY[mSize] = y;
+		mAltitude[mSize] = (float) altitude;
+		mAccuracy[mSize] = accuracy;
+		mSpeed[mSize] = speed;
+		mBearing[mSize] = bearing;
+		mSize++;
+	}
+
+	/**
+	 * @return the number of fixes
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the duration of the trace in milliseconds
+	 */
+	public long getDuration() {
+		return mSize == 0 ? 0 : mTime[mSize - 1] - mTime[0];
+	}
+
+	/**
+	 * Sends one fix to the listener
+	 *
+	 * @param index the fix index
+	 * @param listener receives the fix
+	 */
+	public void deliver(int index, FixListener listener) {
+
+		listener.onFix(mTime[index], mX[index], mY[index], mAltitude[index],
+				mAccuracy[index], mSpeed[index], mBearing[index]);
+	}
+
+	/**
+	 * @param index the fix index
+	 * @return the fix time, milliseconds since the epoch
+	 */
+	public long getTime(int index) {
+		return mTime[index];
+	}
+
+	/**
+	 * @param index the fix index
+	 * @return the fix longitude
+	 */
+	public double getX(int index) {
+		return mX[index];
+	}
+
+	/**
+	 * @param index the fix index
+	 * @return the fix latitude
+	 */
+	public double getY(int index) {
+		return mY[index];
+	}
+
+	private void grow() {
+
+		int capacity = mTime.length * 2;
+
+		long[] time = new long[capacity];
+		System.arraycopy(mTime, 0, time, 0, mSize);
+		mTime = time;
+
+		mX = copyOf(mX, capacity);
+		mY = copyOf(mY, capacity);
+		mAltitude = copyOf(mAltitude, capacity);
+		mAccuracy = copyOf(mAccuracy, capacity);
+		mSpeed = copyOf(mSpeed, capacity);
+		mBearing = copyOf(mBearing, capacity);
+	}
+
+	/* Arrays.copyOf is not available before API 9 */
+	private double[] copyOf(double[] source, int capacity) {
+		double[] result = new double[capacity];
+		System.arraycopy(source, 0, result, 0, mSize);
+		return result;
+	}
+
+	private float[] copyOf(float[] source, int capacity) {
+		float[] result = new float[capacity];
+		System.arraycopy(source, 0, result, 0, mSize);
+		return result;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Bundle;
+
+/**
+ * Captures raw gps fixes to a trace stream, for later replay with
+ * TraceReplayer. Can be registered with the LocationManager in place of the
+ * real listener, every callback is forwarded to the delegate listener (if
+ * any) after the fix is written.
+ *
+ * Each fix is stored as a fixed-size 40 byte record, see Trace for the
+ * format.
+ *
+ * @author Tom
+ *
+ */
+public class TraceRecorder implements LocationListener, FixListener {
+
+	/** the trace output */
+	private DataOutputStream mOutput;
+	/** the listener receiving the forwarded callbacks, may be null */
+	private LocationListener mDelegate;
+	/** number of fixes written */
+	private int mCount;
+	/** first error writing the trace, reported by close */
+	private IOException mError;
+
+	/**
+	 * constructor
+	 *
+	 * @param output the stream receiving the trace (closed by close())
+	 * @param delegate the listener receiving the forwarded callbacks, may be
+	 *            null
+	 * @throws IOException
+	 */
+	public TraceRecorder(OutputStream output, LocationListener delegate)
+			throws IOException {
+
+		mOutput = new DataOutputStream(new BufferedOutputStream(output));
+		mDelegate = delegate;
+
+		mOutput.writeInt(Trace.MAGIC);
+		mOutput.writeInt(Trace.VERSION);
+	}
+
+	/**
+	 * @return the number of fixes recorded so far
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * Writes one fix to the trace
+	 */
+	public void onFix(long time, double x, double y, double altitude,
+			float accuracy, float speed, float bearing) {
+
+		if (mError != null)
+			return;
+
+		try {
+
+			mOutput.writeLong(time);
+			mOutput.writeDouble(x);
+			mOutput.writeDouble(y);
+			mOutput.writeFloat((float) altitude);
+			mOutput.writeFloat(accuracy);
+			mOutput.writeFloat(speed);
+			mOutput.writeFloat(bearing);
+			mCount++;
+
+		} catch (IOException e) {
+			/*
+			 * the gps callbacks can't throw, hold on to the error and stop
+			 * recording
+			 */
+			e.printStackTrace();
+			mError = e;
+		}
+	}
+
+	/**
+	 * Flushes and closes the trace
+	 *
+	 * @throws IOException if writing any fix, or closing, failed
+	 */
+	public void close() throws IOException {
+
+		try {
+			mOutput.close();
+		} catch (IOException e) {
+			if (mError == null)
+				mError = e;
+		}
+
+		if (mError != null)
+			throw mError;
+	}
+
+	/**
+	 * Records the location and forwards it to the delegate.
+	 * (LocationListener implementation)
+	 */
+	public void onLocationChanged(Location location) {
+
+		onFix(location.getTime(), location.getLongitude(),
+				location.getLatitude(),
+				location.hasAltitude() ? location.getAltitude() : Double.NaN,
+				location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+				location.hasSpeed() ? location.getSpeed() : Float.NaN,
+				location.hasBearing() ? location.getBearing() : Float.NaN);
+
+		if (mDelegate != null)
+			mDelegate.onLocationChanged(location);
+	}
+
+	/**
+	 * Forwarded to the delegate. (LocationListener implementation)
+	 */
+	public void onProviderDisabled(String provider) {
+
+		if (mDelegate != null)
+			mDelegate.onProviderDisabled(provider);
+	}
+
+	/**
+	 * Forwarded to the delegate. (LocationListener implementation)
+	 */
+	public void onProviderEnabled(String provider) {
+
+		if (mDelegate != null)
+			mDelegate.onProviderEnabled(provider);
+	}
+
+	/**
+	 * Forwarded to the delegate. (LocationListener implementation)
+	 */
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+
+		if (mDelegate != null)
+			mDelegate.onStatusChanged(provider, status, extras);
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Feeds a recorded trace to a listener, either paced at a multiple of the
+ * recorded rate or as fast as the listener can take it, and measures how the
+ * listener keeps up.
+ *
+ * Use LocationFixAdapter to drive a LocationListener (such as the activity)
+ * on a device, or pass the fix-processing code directly as a FixListener to
+ * benchmark it on a plain JVM.
+ *
+ * @author Tom
+ *
+ */
+public class TraceReplayer {
+
+	/** replay speed that disables pacing */
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+	/** the trace being replayed */
+	private Trace mTrace;
+
+	/** set by cancel() to stop a running replay */
+	private volatile boolean mCancelled;
+
+	/**
+	 * constructor
+	 *
+	 * @param trace the trace to replay
+	 */
+	public TraceReplayer(Trace trace) {
+		mTrace = trace;
+	}
+
+	/**
+	 * Stops a running replay after the current fix
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * Replays the whole trace on the calling thread
+	 *
+	 * @param listener receives the fixes
+	 * @param speed multiple of the recorded rate (1.0 is real time), or
+	 *            MAX_SPEED to deliver fixes back to back
+	 * @return timing of the replay
+	 * @throws InterruptedException if the thread is interrupted while pacing
+	 */
+	public ReplayStats replay(FixListener listener, double speed)
+			throws InterruptedException {
+
+		if (!(speed > 0.0))
+			throw new IllegalArgumentException("Replay speed must be positive");
+
+		mCancelled = false;
+		boolean paced = speed != MAX_SPEED;
+
+		int size = mTrace.size();
+		long firstTime = size > 0 ? mTrace.getTime(0) : 0;
+
+		long maxNanos = 0;
+		long listenerNanos = 0;
+		int count = 0;
+
+		long allocatedStart = threadAllocatedBytes();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < size && !mCancelled; i++) {
+
+			if (paced) {
+				/*
+				 * pace against the replay start rather than the previous fix,
+				 * so a slow listener doesn't accumulate drift
+				 */
+				long due = start
+						+ (long) ((mTrace.getTime(i) - firstTime) * 1e6 / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			}
+
+			long before = System.nanoTime();
+			mTrace.deliver(i, listener);
+			long elapsed = System.nanoTime() - before;
+
+			listenerNanos += elapsed;
+			if (elapsed > maxNanos)
+				maxNanos = elapsed;
+			count++;
+		}
+
+		long total = System.nanoTime() - start;
+		long allocatedEnd = threadAllocatedBytes();
+		long allocated = allocatedStart < 0 || allocatedEnd < 0 ? -1
+				: allocatedEnd - allocatedStart;
+
+		return new ReplayStats(count, total, listenerNanos, maxNanos,
+				allocated);
+	}
+
+	/* reflection handles for the HotSpot per-thread allocation counter */
+	private static Object sThreadBean;
+	private static Method sAllocatedBytes;
+
+	static {
+		/*
+		 * java.lang.management only exists on a desktop JVM, on a device the
+		 * allocation figure is reported as unavailable
+		 */
+		try {
+			Class<?> factory = Class
+					.forName("java.lang.management.ManagementFactory");
+			Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> beanClass = Class
+					.forName("com.sun.management.ThreadMXBean");
+			if (beanClass.isInstance(bean)) {
+				sAllocatedBytes = beanClass.getMethod(
+						"getThreadAllocatedBytes", long.class);
+				sThreadBean = bean;
+			}
+		} catch (Throwable e) {
+			sThreadBean = null;
+			sAllocatedBytes = null;
+		}
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, -1 if the runtime
+	 *         doesn't say
+	 */
+	private static long threadAllocatedBytes() {
+
+		if (sAllocatedBytes == null)
+			return -1;
+
+		try {
+			Object result = sAllocatedBytes.invoke(sThreadBean, Long
+					.valueOf(Thread.currentThread().getId()));
+			return ((Long) result).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Timing of one replay
+	 *
+	 * @author Tom
+	 *
+	 */
+	public static class ReplayStats {
+
+		/** fixes delivered */
+		public final int count;
+		/** wall time of the whole replay, nanoseconds */
+		public final long elapsedNanos;
+		/** time spent inside the listener, nanoseconds */
+		public final long listenerNanos;
+		/** slowest single fix, nanoseconds */
+		public final long maxFixNanos;
+		/** bytes allocated by the replay thread, -1 if unavailable */
+		public final long allocatedBytes;
+
+		ReplayStats(int count, long elapsedNanos, long listenerNanos,
+				long maxFixNanos, long allocatedBytes) {
+			this.count = count;
+			this.elapsedNanos = elapsedNanos;
+			this.listenerNanos = listenerNanos;
+			this.maxFixNanos = maxFixNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		 * @return fixes processed per second of wall time
+		 */
+		public double getFixesPerSecond() {
+			return elapsedNanos == 0 ? 0.0 : count * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return average listener time per fix, nanoseconds
+		 */
+		public double getMeanFixNanos() {
+			return count == 0 ? 0.0 : (double) listenerNanos / count;
+		}
+
+		/**
+		 * @return average bytes allocated per fix, -1 if unavailable
+		 */
+		public double getBytesPerFix() {
+			if (allocatedBytes < 0)
+				return -1.0;
+			return count == 0 ? 0.0 : (double) allocatedBytes / count;
+		}
+
+		@Override
+		public String toString() {
+			return count + " fixes, " + (long) getFixesPerSecond()
+					+ " fixes/s, mean " + (long) getMeanFixNanos()
+					+ " ns/fix, max " + maxFixNanos + " ns/fix, "
+					+ (allocatedBytes < 0 ? "allocation n/a"
+							: (long) getBytesPerFix() + " bytes/fix");
+		}
+	}
+}
@@ -0,0 +1,917 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import com.webolatry.distance.codec.CoordinateCodec;
+import com.webolatry.distance.geo.Ellipsoidal;
+import com.webolatry.distance.geo.Spherical;
+
+/**
+ * A long track held in bounded memory, for recordings of days rather than
+ * hours.
+ *
+ * Fixes are kept in three tiers:
+ * <ul>
+ * <li>recent: the last getRecentWindow() of fixes at full rate, as
+ * primitive arrays.</li>
+ * <li>sealed: older fixes, in segments of getSegmentDuration(). Each is
+ * downsampled when sealed and encoded with CoordinateCodec. Segments older
+ * than the coarsening age are downsampled again with the coarse tolerance,
+ * spilled or not.</li>
+ * <li>spilled: once the store's memory goes over its cap, the oldest sealed
+ * segments are moved to the spill file, and only their summaries stay in
+ * memory.</li>
+ * </ul>
+ *
+ * Distance along the track is measured at full rate before downsampling
+ * and stored with the kept points, so total distance doesn't shrink as the
+ * track is simplified. Downsampling keeps the fewest points that put every
+ * dropped fix within the tolerance of the position, and of the distance
+ * along the track, interpolated at its time (Douglas-Peucker on
+ * time-synchronized distance). Position and distance queries on sealed
+ * fixes are therefore right to within the tolerance. Coarsening can only
+ * downsample the points kept when sealing, so the errors add: on coarsened
+ * segments queries are right to within the tolerance plus the coarse
+ * tolerance. Points are also kept at least every max interval, if one is
+ * set.
+ *
+ * The spill file is scratch space, deleted by close(). A spilled segment
+ * that is coarsened is written again at the end of the file, leaving its
+ * old space unused, so a failed write can't damage it. Spilling does file
+ * i/o on the thread feeding fixes, a few kilobytes per segment. A failed
+ * spill leaves its segments in memory until the next seal tries again; a
+ * failed coarsening leaves its segment as sealed. The first error is
+ * reported by getError() and close(). After close() fixes are ignored.
+ *
+ * All methods are synchronized, so queries can come from another thread.
+ *
+ * @author Tom
+ *
+ */
+public class TrackStore implements FixListener {
+
+	/** default span of the full-rate tier, milliseconds */
+	public static final long DEFAULT_RECENT_WINDOW = 10 * 60 * 1000L;
+
+	/** default span of a sealed segment, milliseconds */
+	public static final long DEFAULT_SEGMENT_DURATION = 15 * 60 * 1000L;
+
+	/** default downsampling tolerance of sealed segments, meters */
+	public static final double DEFAULT_TOLERANCE = 2.0;
+
+	/** default downsampling tolerance of coarsened segments, meters */
+	public static final double DEFAULT_COARSE_TOLERANCE = 10.0;
+
+	/** default age at which segments are coarsened, milliseconds */
+	public static final long DEFAULT_COARSEN_AGE = 24 * 60 * 60 * 1000L;
+
+	/** decimal places of the stored coordinates, about 10 centimeters */
+	private static final int PRECISION = 6;
+
+	/** estimated bytes of a segment summary, object and array headers */
+	private static final int SEGMENT_OVERHEAD = 128;
+
+	/** meters per degree of latitude, on the mean-radius sphere */
+	private static final double METERS_PER_DEGREE = Math.PI / 180.0
+			* Spherical.EARTH_RADIUS;
+
+	/** encodes the sealed segments */
+	private final CoordinateCodec mCodec = new CoordinateCodec(PRECISION);
+
+	/** the spill file, and its handle once opened */
+	private File mSpillFile;
+	private RandomAccessFile mSpill;
+	/** first spill error */
+	private IOException mError;
+	/** true once close() is called */
+	private boolean mClosed;
+
+	/** the most bytes to hold in memory */
+	private long mMemoryCap;
+
+	private long mRecentWindow = DEFAULT_RECENT_WINDOW;
+	private long mSegmentDuration = DEFAULT_SEGMENT_DURATION;
+	private double mTolerance = DEFAULT_TOLERANCE;
+	private double mCoarseTolerance = DEFAULT_COARSE_TOLERANCE;
+	private long mCoarsenAge = DEFAULT_COARSEN_AGE;
+	private long mMaxInterval;
+
+	/** the recent tier, oldest first */
+	private int mCount;
+	private long[] mTimes = new long[256];
+	private double[] mX = new double[256];
+	private double[] mY = new double[256];
+	/** meters along the track from the first fix */
+	private double[] mTrack = new double[256];
+
+	/** sealed segments, oldest first */
+	private ArrayList<Segment> mSegments = new ArrayList<Segment>();
+	/** the oldest segment not yet coarsened */
+	private int mNextCoarsen;
+	/** the oldest segment not yet spilled */
+	private int mNextSpill;
+	/** bytes of segment data held in memory */
+	private long mSegmentBytes;
+	/** bytes written to the spill file */
+	private long mSpillBytes;
+
+	/** total fixes accepted */
+	private long mFixes;
+
+	/**
+	 * points of one segment, for sealing, coarsening and queries; holds the
+	 * decoded mDecoded, if any
+	 */
+	private int mPointCount;
+	private long[] mPointTimes = new long[256];
+	private double[] mPointX = new double[256];
+	private double[] mPointY = new double[256];
+	private long[] mPointTrack = new long[256];
+	private Segment mDecoded;
+
+	/** scratch for encoding, decoding and downsampling */
+	private byte[] mBytes = new byte[4096];
+	private boolean[] mKeep = new boolean[256];
+	private int[] mStack = new int[512];
+
+	/** the two points bracketing the last queried time */
+	private long mT0, mT1;
+	private double mX0, mY0, mD0, mX1, mY1, mD1;
+
+	/**
+	 * constructor
+	 *
+	 * @param spillFile scratch file for segments over the memory cap
+	 * @param memoryCap the most bytes to hold in memory, as
+	 *            getMemoryBytes() counts them. The recent tier, the scratch
+	 *            arrays and the summaries of spilled segments (about 130
+	 *            bytes each) can't be spilled, below them the cap only
+	 *            keeps every sealed segment on disk.
+	 */
+	public TrackStore(File spillFile, long memoryCap) {
+		mSpillFile = spillFile;
+		mMemoryCap = memoryCap;
+	}
+
+	/**
+	 * @param millis span of the full-rate tier
+	 */
+	public synchronized void setRecentWindow(long millis) {
+		mRecentWindow = millis;
+	}
+
+	/**
+	 * @return span of the full-rate tier, milliseconds
+	 */
+	public synchronized long getRecentWindow() {
+		return mRecentWindow;
+	}
+
+	/**
+	 * @param millis span of a sealed segment
+	 */
+	public synchronized void setSegmentDuration(long millis) {
+		if (millis <= 0)
+			throw new IllegalArgumentException("Duration must be positive");
+		mSegmentDuration = millis;
+	}
+
+	/**
+	 * @return span of a sealed segment, milliseconds
+	 */
+	public synchronized long getSegmentDuration() {
+		return mSegmentDuration;
+	}
+
+	/**
+	 * Sets how segments are downsampled. Applies to segments sealed from
+	 * now on.
+	 *
+	 * @param meters the position error allowed when sealing, 0 to keep
+	 *            every fix
+	 * @param coarseMeters the position error allowed once a segment is
+	 *            older than coarsenAge
+	 * @param coarsenAge age of the newest fix of a segment at which it is
+	 *            coarsened, milliseconds
+	 * @param maxInterval the longest time between kept points,
+	 *            milliseconds, 0 for no limit
+	 */
+	public synchronized void setDownsampling(double meters,
+			double coarseMeters, long coarsenAge, long maxInterval) {
+		mTolerance = meters;
+		mCoarseTolerance = coarseMeters;
+		mCoarsenAge = coarsenAge;
+		mMaxInterval = maxInterval;
+	}
+
+	/**
+	 * Appends a fix. Fixes not newer than the previous one, or after close(),
+	 * are ignored.
+	 */
+	public synchronized void onFix(long time, double x, double y,
+			double altitude, float accuracy, float speed, float bearing) {
+
+		/* the spill file is gone, so nothing more can be sealed */
+		if (mClosed)
+			return;
+
+		double track = 0.0;
+		if (mCount > 0) {
+			int last = mCount - 1;
+			if (time <= mTimes[last])
+				return;
+			track = mTrack[last]
+					+ Ellipsoidal.distance(mX[last], mY[last], x, y);
+		} else if (!mSegments.isEmpty()) {
+			Segment last = mSegments.get(mSegments.size() - 1);
+			if (time <= last.endTime)
+				return;
+			track = last.endTrack
+					+ Ellipsoidal.distance(last.endX, last.endY, x, y);
+		}
+
+		if (mCount == mTimes.length)
+			growRecent();
+
+		mTimes[mCount] = time;
+		mX[mCount] = x;
+		mY[mCount] = y;
+		mTrack[mCount] = track;
+		mCount++;
+		mFixes++;
+
+		/* seal whole segments once they are older than the recent window */
+		while (mCount > 1
+				&& time - mTimes[0] > mRecentWindow + mSegmentDuration)
+			seal(time);
+	}
+
+	/**
+	 * @return total fixes accepted
+	 */
+	public synchronized long getFixCount() {
+		return mFixes;
+	}
+
+	/**
+	 * @return the time of the first fix, -1 if empty
+	 */
+	public synchronized long getStartTime() {
+		if (!mSegments.isEmpty())
+			return mSegments.get(0).startTime;
+		return mCount > 0 ? mTimes[0] : -1;
+	}
+
+	/**
+	 * @return the time of the latest fix, -1 if empty
+	 */
+	public synchronized long getEndTime() {
+		if (mCount > 0)
+			return mTimes[mCount - 1];
+		return mSegments.isEmpty() ? -1
+				: mSegments.get(mSegments.size() - 1).endTime;
+	}
+
+	/**
+	 * @return meters along the whole track, measured at full rate
+	 */
+	public synchronized double getTotalDistance() {
+		if (mCount > 0)
+			return mTrack[mCount - 1];
+		return mSegments.isEmpty() ? 0.0 : mSegments
+				.get(mSegments.size() - 1).endTrack;
+	}
+
+	/**
+	 * @param startTime the start, milliseconds since the epoch
+	 * @param endTime the end, milliseconds since the epoch
+	 * @return meters traveled between the two times, clamped to the track
+	 * @throws IOException if a spilled segment can't be read
+	 */
+	public synchronized double getDistance(long startTime, long endTime)
+			throws IOException {
+
+		if (mFixes == 0 || endTime <= startTime)
+			return 0.0;
+
+		long first = getStartTime();
+		long last = getEndTime();
+		startTime = Math.max(startTime, first);
+		endTime = Math.min(endTime, last);
+		if (endTime <= startTime)
+			return 0.0;
+
+		bracket(endTime);
+		double end = interpolate(mD0, mD1, endTime);
+		bracket(startTime);
+		return end - interpolate(mD0, mD1, startTime);
+	}
+
+	/**
+	 * Finds where the track was at a time, interpolating between the stored
+	 * points
+	 *
+	 * @param time milliseconds since the epoch
+	 * @param position receives the longitude at [0] and latitude at [1]
+	 *            (WGS84 degrees)
+	 * @return false if the time is outside the track
+	 * @throws IOException if a spilled segment can't be read
+	 */
+	public synchronized boolean getPosition(long time, double[] position)
+			throws IOException {
+
+		if (mFixes == 0 || time < getStartTime() || time > getEndTime())
+			return false;
+
+		bracket(time);
+
+		/* the shorter way around, across the date line */
+		double dx = mX1 - mX0;
+		if (dx > 180.0)
+			dx -= 360.0;
+		else if (dx < -180.0)
+			dx += 360.0;
+
+		double x = mX0 + (mT1 == mT0 ? 0.0 : dx * (time - mT0) / (mT1 - mT0));
+		if (x > 180.0)
+			x -= 360.0;
+		else if (x < -180.0)
+			x += 360.0;
+
+		position[0] = x;
+		position[1] = interpolate(mY0, mY1, time);
+		return true;
+	}
+
+	/**
+	 * @return estimated bytes held in memory: the recent tier, sealed
+	 *         segments not spilled, every segment summary and the scratch
+	 *         arrays
+	 */
+	public synchronized long getMemoryBytes() {
+		long recent = mTimes.length * 32L;
+		long scratch = mPointTimes.length * 33L + mBytes.length
+				+ mStack.length * 4L;
+		return recent + scratch + mSegmentBytes + mSegments.size()
+				* (long) SEGMENT_OVERHEAD;
+	}
+
+	/**
+	 * @return bytes written to the spill file
+	 */
+	public synchronized long getSpilledBytes() {
+		return mSpillBytes;
+	}
+
+	/**
+	 * @return the number of sealed segments, in memory or spilled
+	 */
+	public synchronized int getSegmentCount() {
+		return mSegments.size();
+	}
+
+	/**
+	 * @return the number of sealed segments in the spill file
+	 */
+	public synchronized int getSpilledCount() {
+		return mNextSpill;
+	}
+
+	/**
+	 * @return points stored, after downsampling, in every tier
+	 */
+	public synchronized long getPointCount() {
+		long count = mCount;
+		for (int i = 0, size = mSegments.size(); i < size; i++)
+			count += mSegments.get(i).count;
+		return count;
+	}
+
+	/**
+	 * @return the first spill error, null if none
+	 */
+	public synchronized IOException getError() {
+		return mError;
+	}
+
+	/**
+	 * Closes and deletes the spill file, and stops taking fixes. Spilled
+	 * segments can't be queried afterwards.
+	 *
+	 * @throws IOException if any spill or coarsening, or closing, failed
+	 */
+	public synchronized void close() throws IOException {
+
+		mClosed = true;
+		mDecoded = null;
+
+		if (mSpill != null) {
+			try {
+				mSpill.close();
+			} catch (IOException e) {
+				if (mError == null)
+					mError = e;
+			}
+			mSpill = null;
+			mSpillFile.delete();
+		}
+
+		if (mError != null)
+			throw mError;
+	}
+
+	/**
+	 * Moves the oldest segment of the recent tier into a sealed segment
+	 *
+	 * @param now the latest fix time
+	 */
+	private void seal(long now) {
+
+		/* the segment ends before the first fix a full duration later */
+		long end = mTimes[0] + mSegmentDuration;
+		int count = 1;
+		while (count < mCount - 1 && mTimes[count] < end)
+			count++;
+
+		ensurePoints(count);
+		mDecoded = null;
+
+		System.arraycopy(mTimes, 0, mPointTimes, 0, count);
+		System.arraycopy(mX, 0, mPointX, 0, count);
+		System.arraycopy(mY, 0, mPointY, 0, count);
+		for (int i = 0; i < count; i++)
+			mPointTrack[i] = Math.round(mTrack[i] * 100.0);
+		mPointCount = count;
+
+		int length = encode(mTolerance);
+		int last = mPointCount - 1;
+
+		Segment segment = new Segment();
+		segment.startTime = mPointTimes[0];
+		segment.startX = mPointX[0];
+		segment.startY = mPointY[0];
+		segment.startTrack = mPointTrack[0] / 100.0;
+		segment.endTime = mPointTimes[last];
+		segment.endX = mPointX[last];
+		segment.endY = mPointY[last];
+		segment.endTrack = mPointTrack[last] / 100.0;
+		keep(segment, length);
+		mSegments.add(segment);
+
+		mCount -= count;
+		System.arraycopy(mTimes, count, mTimes, 0, mCount);
+		System.arraycopy(mX, count, mX, 0, mCount);
+		System.arraycopy(mY, count, mY, 0, mCount);
+		System.arraycopy(mTrack, count, mTrack, 0, mCount);
+
+		coarsen(now);
+		spill();
+	}
+
+	/**
+	 * Downsamples again the segments older than the coarsening age, in
+	 * memory or in the spill file
+	 */
+	private void coarsen(long now) {
+
+		if (mCoarseTolerance <= mTolerance) {
+			mNextCoarsen = mSegments.size();
+			return;
+		}
+
+		while (mNextCoarsen < mSegments.size()) {
+
+			Segment segment = mSegments.get(mNextCoarsen);
+			if (now - segment.endTime < mCoarsenAge)
+				break;
+
+			boolean spilled = segment.data == null;
+			try {
+
+				decode(segment);
+				mDecoded = null;
+				int length = encode(mCoarseTolerance);
+
+				/* spilled: the old copy is only replaced once written */
+				if (spilled) {
+					mSpill.seek(mSpillBytes);
+					mSpill.write(mBytes, 0, length);
+					segment.offset = mSpillBytes;
+					mSpillBytes += length;
+					segment.count = mPointCount;
+					segment.length = length;
+				} else {
+					mSegmentBytes -= segment.length;
+					keep(segment, length);
+				}
+
+			} catch (IOException e) {
+				/* the segment stays as sealed, it isn't tried again */
+				failed(e);
+			}
+
+			mNextCoarsen++;
+		}
+	}
+
+	/**
+	 * Moves the oldest in-memory segments to the spill file until under the
+	 * memory cap
+	 */
+	private void spill() {
+
+		while (!mClosed && mNextSpill < mSegments.size()
+				&& getMemoryBytes() > mMemoryCap) {
+
+			Segment segment = mSegments.get(mNextSpill);
+			try {
+
+				if (mSpill == null)
+					mSpill = new RandomAccessFile(mSpillFile, "rw");
+
+				mSpill.seek(mSpillBytes);
+				mSpill.write(segment.data);
+
+			} catch (IOException e) {
+				/* the segments stay in memory until the next seal */
+				failed(e);
+				return;
+			}
+
+			segment.offset = mSpillBytes;
+			mSpillBytes += segment.length;
+			mSegmentBytes -= segment.length;
+			segment.data = null;
+			mNextSpill++;
+		}
+	}
+
+	/**
+	 * Records a spill file error, keeping the first for getError() and
+	 * close()
+	 */
+	private void failed(IOException e) {
+		if (mError == null) {
+			e.printStackTrace();
+			mError = e;
+		}
+	}
+
+	/**
+	 * Downsamples the loaded points and encodes them into mBytes: times,
+	 * coordinates, then centimeters along the track
+	 *
+	 * @return the encoded length
+	 */
+	private int encode(double tolerance) {
+
+		mPointCount = simplify(tolerance);
+		int count = mPointCount;
+
+		int capacity = 20 * count + mCodec.maxEncodedLength(count);
+		if (mBytes.length < capacity)
+			mBytes = new byte[capacity];
+
+		int position = CoordinateCodec.encodeDeltas(mPointTimes, 0, count,
+				mBytes, 0);
+		position = mCodec.encode(mPointX, mPointY, 0, count, mBytes,
+				position);
+		return CoordinateCodec.encodeDeltas(mPointTrack, 0, count, mBytes,
+				position);
+	}
+
+	/**
+	 * Holds the encoded points in memory as the segment's data
+	 */
+	private void keep(Segment segment, int length) {
+		segment.data = new byte[length];
+		System.arraycopy(mBytes, 0, segment.data, 0, length);
+		segment.count = mPointCount;
+		segment.length = length;
+		mSegmentBytes += length;
+	}
+
+	/**
+	 * Loads a segment's points, unless they are loaded already
+	 */
+	private void decode(Segment segment) throws IOException {
+
+		if (mDecoded == segment)
+			return;
+
+		byte[] data = segment.data;
+		if (data == null) {
+
+			if (mClosed || mSpill == null)
+				throw new IOException("Spilled segment unavailable, the store "
+						+ "is closed");
+
+			if (mBytes.length < segment.length)
+				mBytes = new byte[segment.length];
+			mSpill.seek(segment.offset);
+			mSpill.readFully(mBytes, 0, segment.length);
+			data = mBytes;
+		}
+
+		int count = segment.count;
+		ensurePoints(count);
+		mDecoded = null;
+
+		int position = CoordinateCodec.decodeDeltas(data, 0, count,
+				mPointTimes, 0);
+		position = mCodec.decode(data, position, count, mPointX, mPointY, 0);
+		CoordinateCodec.decodeDeltas(data, position, count, mPointTrack, 0);
+
+		mPointCount = count;
+		mDecoded = segment;
+	}
+
+	/**
+	 * Sets the two stored points either side of a time inside the track
+	 */
+	private void bracket(long time) throws IOException {
+
+		/* the recent tier */
+		if (mCount > 0 && time >= mTimes[0]) {
+			int i = search(mTimes, mCount, time);
+			int j = Math.min(i + 1, mCount - 1);
+			mT0 = mTimes[i];
+			mX0 = mX[i];
+			mY0 = mY[i];
+			mD0 = mTrack[i];
+			mT1 = mTimes[j];
+			mX1 = mX[j];
+			mY1 = mY[j];
+			mD1 = mTrack[j];
+			return;
+		}
+
+		/* the last segment starting at or before the time */
+		int low = 0;
+		int high = mSegments.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (mSegments.get(middle).startTime <= time)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		Segment segment = mSegments.get(low);
+
+		if (time >= segment.endTime) {
+
+			/* between segments, from this one's end to the next start */
+			mT0 = segment.endTime;
+			mX0 = segment.endX;
+			mY0 = segment.endY;
+			mD0 = segment.endTrack;
+
+			if (low + 1 < mSegments.size()) {
+				Segment next = mSegments.get(low + 1);
+				mT1 = next.startTime;
+				mX1 = next.startX;
+				mY1 = next.startY;
+				mD1 = next.startTrack;
+			} else if (mCount > 0) {
+				mT1 = mTimes[0];
+				mX1 = mX[0];
+				mY1 = mY[0];
+				mD1 = mTrack[0];
+			} else {
+				mT1 = mT0;
+				mX1 = mX0;
+				mY1 = mY0;
+				mD1 = mD0;
+			}
+			return;
+		}
+
+		decode(segment);
+		int i = search(mPointTimes, mPointCount, time);
+		int j = Math.min(i + 1, mPointCount - 1);
+		mT0 = mPointTimes[i];
+		mX0 = mPointX[i];
+		mY0 = mPointY[i];
+		mD0 = mPointTrack[i] / 100.0;
+		mT1 = mPointTimes[j];
+		mX1 = mPointX[j];
+		mY1 = mPointY[j];
+		mD1 = mPointTrack[j] / 100.0;
+	}
+
+	private double interpolate(double v0, double v1, long time) {
+		if (mT1 == mT0)
+			return v0;
+		return v0 + (v1 - v0) * (time - mT0) / (mT1 - mT0);
+	}
+
+	/**
+	 * @return the last index with a time at or before the given one, 0 if
+	 *         none
+	 */
+	private static int search(long[] times, int count, long time) {
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (times[middle] <= time)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Douglas-Peucker on time-synchronized distance: drops the points that
+	 * are within the tolerance of where interpolating the kept points by
+	 * time puts them. Compacts the kept points in place.
+	 *
+	 * @return the number of points kept
+	 */
+	private int simplify(double tolerance) {
+
+		int count = mPointCount;
+		if (count <= 2 || (tolerance <= 0.0 && mMaxInterval <= 0))
+			return count;
+
+		if (mKeep.length < count)
+			mKeep = new boolean[mPointTimes.length];
+		for (int i = 0; i < count; i++)
+			mKeep[i] = false;
+		mKeep[0] = true;
+		mKeep[count - 1] = true;
+
+		/* spans still to check, as first and last index pairs */
+		int top = 0;
+		mStack[top++] = 0;
+		mStack[top++] = count - 1;
+
+		while (top > 0) {
+
+			int last = mStack[--top];
+			int first = mStack[--top];
+			if (last - first < 2)
+				continue;
+
+			long t0 = mPointTimes[first];
+			long span = mPointTimes[last] - t0;
+			double x0 = mPointX[first];
+			double y0 = mPointY[first];
+			double dx = wrap(mPointX[last] - x0);
+			double dy = mPointY[last] - y0;
+			long d0 = mPointTrack[first];
+			double dd = mPointTrack[last] - d0;
+			double cosPhi = Math.cos(Math.toRadians(y0));
+
+			int worst = -1;
+			double worstError = tolerance;
+			for (int i = first + 1; i < last; i++) {
+
+				double f = (double) (mPointTimes[i] - t0) / span;
+				double ex = wrap(mPointX[i] - x0 - f * dx) * cosPhi;
+				double ey = mPointY[i] - y0 - f * dy;
+				double error = Math.sqrt(ex * ex + ey * ey)
+						* METERS_PER_DEGREE;
+
+				/* distance along the track, in centimeters */
+				double ed = Math.abs(mPointTrack[i] - d0 - f * dd) / 100.0;
+				if (ed > error)
+					error = ed;
+
+				if (error > worstError) {
+					worstError = error;
+					worst = i;
+				}
+			}
+
+			/*
+			 * keep a point at least every max interval: the last at or before
+			 * the middle, or the first inside the span if none is
+			 */
+			if (worst < 0 && mMaxInterval > 0 && span > mMaxInterval)
+				worst = Math.max(search(mPointTimes, last, t0 + span / 2),
+						first + 1);
+			if (worst <= first || worst >= last)
+				continue;
+
+			mKeep[worst] = true;
+			if (top + 4 > mStack.length) {
+				int[] stack = new int[mStack.length * 2];
+				System.arraycopy(mStack, 0, stack, 0, top);
+				mStack = stack;
+			}
+			mStack[top++] = first;
+			mStack[top++] = worst;
+			mStack[top++] = worst;
+			mStack[top++] = last;
+		}
+
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (mKeep[i]) {
+				mPointTimes[kept] = mPointTimes[i];
+				mPointX[kept] = mPointX[i];
+				mPointY[kept] = mPointY[i];
+				mPointTrack[kept] = mPointTrack[i];
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @return a longitude difference the shorter way around
+	 */
+	private static double wrap(double dx) {
+		if (dx > 180.0)
+			return dx - 360.0;
+		if (dx < -180.0)
+			return dx + 360.0;
+		return dx;
+	}
+
+	private void growRecent() {
+
+		int capacity = mTimes.length * 2;
+
+		long[] times = new long[capacity];
+		System.arraycopy(mTimes, 0, times, 0, mCount);
+		mTimes = times;
+
+		mX = grow(mX, capacity, mCount);
+		mY = grow(mY, capacity, mCount);
+		mTrack = grow(mTrack, capacity, mCount);
+	}
+
+	private void ensurePoints(int count) {
+
+		if (count <= mPointTimes.length)
+			return;
+
+		int capacity = Math.max(count, mPointTimes.length * 2);
+
+		mPointTimes = new long[capacity];
+		mPointX = new double[capacity];
+		mPointY = new double[capacity];
+		mPointTrack = new long[capacity];
+		mKeep = new boolean[capacity];
+		mDecoded = null;
+	}
+
+	private static double[] grow(double[] array, int capacity, int count) {
+		double[] grown = new double[capacity];
+		System.arraycopy(array, 0, grown, 0, count);
+		return grown;
+	}
+
+	/**
+	 * A sealed segment: the ends, for queries between segments and for the
+	 * totals, and the encoded points, in memory or in the spill file
+	 */
+	private static class Segment {
+
+		/** points stored */
+		int count;
+
+		long startTime;
+		double startX;
+		double startY;
+		double startTrack;
+
+		long endTime;
+		double endX;
+		double endY;
+		double endTrack;
+
+		/** the encoded points, null once spilled */
+		byte[] data;
+		/** where the points are in the spill file */
+		long offset;
+		/** encoded length, bytes */
+		int length;
+	}
+}
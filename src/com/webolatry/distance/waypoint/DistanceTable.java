@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.waypoint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import com.webolatry.distance.geo.Ellipsoidal;
+
+/**
+ * Distances between every pair of a set of points, kept up to date as points
+ * are added, moved and removed. Each change only recomputes the row and
+ * column of the affected point, O(n) instead of O(n^2) for the whole table.
+ *
+ * The table is symmetric with a zero diagonal, so only the lower triangle is
+ * stored, as float meters in one array: the distance between slots i > j is
+ * at i * (i - 1) / 2 + j. Slots stay dense, a removed point's slot is filled
+ * by the last point. The triangle must fit one Java array, which limits the
+ * table to MAX_POINTS points (8 GB of floats at the limit).
+ *
+ * Distances are geodesic on the WGS84 ellipsoid (see Ellipsoidal). Each
+ * point's latitude terms are cached, so an entry costs two sines, two square
+ * roots and an arctangent.
+ *
+ * File format (big-endian): int magic, int version, int count, then per point
+ * int id, double x, double y, then the count * (count - 1) / 2 floats of the
+ * triangle. The file is moved through one 256 KB buffer, kept between calls.
+ *
+ * @author Tom
+ *
+ */
+public class DistanceTable {
+
+	/** identifies a distance table file ("DTBL") */
+	private static final int MAGIC = 0x4454424c;
+	/** current file format version */
+	private static final int VERSION = 1;
+	/** floats moved per file i/o call */
+	private static final int IO_CHUNK = 64 * 1024;
+	/** bytes of the magic, version and count */
+	private static final int HEADER_BYTES = 12;
+	/** bytes of a point's id and location */
+	private static final int POINT_BYTES = 20;
+
+	/** the most points, the largest triangle that fits an int index */
+	public static final int MAX_POINTS = 65536;
+
+	/** number of points */
+	private int mSize;
+	/** point ids, by slot */
+	private int[] mIds;
+	/** point longitudes, by slot */
+	private double[] mX;
+	/** point latitudes, by slot */
+	private double[] mY;
+	/** point latitudes and longitudes in radians, by slot */
+	private double[] mPhi;
+	private double[] mLambda;
+	/** sines and cosines of the point latitudes, by slot */
+	private double[] mSinPhi;
+	private double[] mCosPhi;
+	/** id to slot */
+	private HashMap<Integer, Integer> mSlots = new HashMap<Integer, Integer>();
+	/** the lower triangle, meters */
+	private float[] mTable;
+	/** file i/o buffer, made by the first save() or load() */
+	private ByteBuffer mBuffer;
+
+	/**
+	 * constructor
+	 *
+	 * @param capacity expected number of points, at most MAX_POINTS
+	 */
+	public DistanceTable(int capacity) {
+
+		if (capacity > MAX_POINTS)
+			throw new IllegalArgumentException("Capacity over " + MAX_POINTS);
+
+		capacity = Math.max(capacity, 16);
+		mIds = new int[capacity];
+		mX = new double[capacity];
+		mY = new double[capacity];
+		mPhi = new double[capacity];
+		mLambda = new double[capacity];
+		mSinPhi = new double[capacity];
+		mCosPhi = new double[capacity];
+		mTable = new float[triangle(capacity)];
+	}
+
+	/**
+	 * @return the number of points
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @param id identifies the point
+	 * @return true if the point is in the table
+	 */
+	public boolean contains(int id) {
+		return mSlots.containsKey(Integer.valueOf(id));
+	}
+
+	/**
+	 * Adds a point, or moves it if the id is already in the table
+	 *
+	 * @param id identifies the point
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @throws IllegalStateException if the point is new and the table already
+	 *             holds MAX_POINTS points
+	 */
+	public void put(int id, double x, double y) {
+
+		Integer slot = mSlots.get(Integer.valueOf(id));
+
+		if (slot == null) {
+
+			/* a new point only adds a row, at the end of the triangle */
+			ensureCapacity(mSize + 1);
+			int s = mSize++;
+			mIds[s] = id;
+			setPoint(s, x, y);
+			mSlots.put(Integer.valueOf(id), Integer.valueOf(s));
+
+			computeRow(s);
+
+		} else {
+
+			int s = slot.intValue();
+			setPoint(s, x, y);
+
+			/* row s holds the slots before s */
+			computeRow(s);
+
+			/* column s: slots after s */
+			for (int i = s + 1; i < mSize; i++)
+				mTable[triangle(i) + s] = distance(s, i);
+		}
+	}
+
+	/**
+	 * Removes a point
+	 *
+	 * @param id identifies the point
+	 * @return true if the point was in the table
+	 */
+	public boolean remove(int id) {
+
+		Integer slot = mSlots.remove(Integer.valueOf(id));
+		if (slot == null)
+			return false;
+
+		int s = slot.intValue();
+		int last = mSize - 1;
+
+		if (s != last) {
+
+			/* move the last point into the hole, distances and all */
+			for (int j = 0; j < last; j++) {
+				if (j != s)
+					set(s, j, get(last, j));
+			}
+
+			mIds[s] = mIds[last];
+			mX[s] = mX[last];
+			mY[s] = mY[last];
+			mPhi[s] = mPhi[last];
+			mLambda[s] = mLambda[last];
+			mSinPhi[s] = mSinPhi[last];
+			mCosPhi[s] = mCosPhi[last];
+			mSlots.put(Integer.valueOf(mIds[s]), slot);
+		}
+
+		/* the last row falls off the end of the triangle */
+		mSize--;
+		return true;
+	}
+
+	/**
+	 * Removes every point
+	 */
+	public void clear() {
+		mSize = 0;
+		mSlots.clear();
+	}
+
+	/**
+	 * @param id1 identifies one point
+	 * @param id2 identifies the other point
+	 * @return the distance between the points in meters, NaN if either point
+	 *         is not in the table
+	 */
+	public double getDistance(int id1, int id2) {
+
+		Integer slot1 = mSlots.get(Integer.valueOf(id1));
+		Integer slot2 = mSlots.get(Integer.valueOf(id2));
+		if (slot1 == null || slot2 == null)
+			return Double.NaN;
+
+		return get(slot1.intValue(), slot2.intValue());
+	}
+
+	/**
+	 * Copies the distances from one point to every point
+	 *
+	 * @param id identifies the point
+	 * @param meters receives the distances, by slot (length >= size())
+	 * @return false if the point is not in the table
+	 */
+	public boolean getRow(int id, float[] meters) {
+
+		Integer slot = mSlots.get(Integer.valueOf(id));
+		if (slot == null)
+			return false;
+
+		int s = slot.intValue();
+		System.arraycopy(mTable, triangle(s), meters, 0, s);
+		meters[s] = 0.0f;
+		for (int i = s + 1; i < mSize; i++)
+			meters[i] = mTable[triangle(i) + s];
+		return true;
+	}
+
+	/**
+	 * @param id identifies the point
+	 * @return the slot of the point, -1 if it is not in the table
+	 */
+	public int getSlot(int id) {
+
+		Integer slot = mSlots.get(Integer.valueOf(id));
+		return slot == null ? -1 : slot.intValue();
+	}
+
+	/**
+	 * @param slot the slot, 0 to size() - 1
+	 * @return the id of the point in the slot
+	 */
+	public int getId(int slot) {
+		return mIds[slot];
+	}
+
+	/**
+	 * @param slot the slot, 0 to size() - 1
+	 * @return the longitude of the point in the slot (WGS84 degrees)
+	 */
+	public double getX(int slot) {
+		return mX[slot];
+	}
+
+	/**
+	 * @param slot the slot, 0 to size() - 1
+	 * @return the latitude of the point in the slot (WGS84 degrees)
+	 */
+	public double getY(int slot) {
+		return mY[slot];
+	}
+
+	/**
+	 * @param slot1 one slot
+	 * @param slot2 the other slot
+	 * @return the distance between the points in the slots, meters
+	 */
+	public float get(int slot1, int slot2) {
+
+		if (slot1 == slot2)
+			return 0.0f;
+		if (slot1 > slot2)
+			return mTable[triangle(slot1) + slot2];
+		return mTable[triangle(slot2) + slot1];
+	}
+
+	/**
+	 * Writes the table to a file
+	 *
+	 * @param file the file to write
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+
+		try {
+
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = buffer();
+
+			/* header and points, written whenever the buffer fills */
+			buffer.clear();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(mSize);
+			for (int i = 0; i < mSize; i++) {
+				if (buffer.remaining() < POINT_BYTES) {
+					buffer.flip();
+					writeFully(channel, buffer);
+					buffer.clear();
+				}
+				buffer.putInt(mIds[i]);
+				buffer.putDouble(mX[i]);
+				buffer.putDouble(mY[i]);
+			}
+			buffer.flip();
+			writeFully(channel, buffer);
+
+			/* the triangle, in chunks */
+			buffer.clear();
+			FloatBuffer floats = buffer.asFloatBuffer();
+			int length = triangle(mSize);
+			for (int offset = 0; offset < length; offset += IO_CHUNK) {
+				int count = Math.min(IO_CHUNK, length - offset);
+				buffer.clear();
+				floats.clear();
+				floats.put(mTable, offset, count);
+				buffer.limit(count * 4);
+				writeFully(channel, buffer);
+			}
+
+		} finally {
+			fos.close();
+		}
+
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to replace " + file.getPath());
+		}
+	}
+
+	/**
+	 * Replaces the contents of the table with a file written by save(). A
+	 * missing file is an empty table.
+	 *
+	 * @param file the file to read
+	 * @throws IOException if the file exists but can't be read
+	 */
+	public void load(File file) throws IOException {
+
+		clear();
+
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			/* nothing saved yet */
+			return;
+		}
+
+		try {
+
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = buffer();
+
+			buffer.clear();
+			buffer.limit(HEADER_BYTES);
+			readFully(channel, buffer);
+			buffer.flip();
+
+			if (buffer.getInt() != MAGIC)
+				throw new IOException("Not a distance table file");
+			int version = buffer.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported distance table version "
+						+ version);
+			/* the count must match the file length before it sizes anything */
+			int size = buffer.getInt();
+			if (size < 0
+					|| size > MAX_POINTS
+					|| channel.size() != HEADER_BYTES + (long) size
+							* POINT_BYTES + (long) triangle(size) * 4)
+				throw new IOException("Corrupt distance table file");
+
+			ensureCapacity(size);
+
+			/* points, read whenever the buffer runs out */
+			buffer.clear();
+			buffer.limit(0);
+			for (int i = 0; i < size; i++) {
+				if (buffer.remaining() < POINT_BYTES) {
+					buffer.clear();
+					buffer.limit(Math.min(buffer.capacity()
+							- buffer.capacity() % POINT_BYTES, (size - i)
+							* POINT_BYTES));
+					readFully(channel, buffer);
+					buffer.flip();
+				}
+				mIds[i] = buffer.getInt();
+				double x = buffer.getDouble();
+				double y = buffer.getDouble();
+				setPoint(i, x, y);
+				mSlots.put(Integer.valueOf(mIds[i]), Integer.valueOf(i));
+			}
+
+			/* the triangle, in chunks */
+			buffer.clear();
+			FloatBuffer floats = buffer.asFloatBuffer();
+			int length = triangle(size);
+			for (int offset = 0; offset < length; offset += IO_CHUNK) {
+				int count = Math.min(IO_CHUNK, length - offset);
+				buffer.clear();
+				buffer.limit(count * 4);
+				readFully(channel, buffer);
+				floats.clear();
+				floats.get(mTable, offset, count);
+			}
+
+			mSize = size;
+
+		} catch (IOException e) {
+			/* leave the table empty rather than partially loaded */
+			clear();
+			throw e;
+
+		} finally {
+			fis.close();
+		}
+	}
+
+	private void setPoint(int slot, double x, double y) {
+
+		double phi = Math.toRadians(y);
+
+		mX[slot] = x;
+		mY[slot] = y;
+		mPhi[slot] = phi;
+		mLambda[slot] = Math.toRadians(x);
+		mSinPhi[slot] = Math.sin(phi);
+		mCosPhi[slot] = Math.cos(phi);
+	}
+
+	/**
+	 * Fills row s, the distances from slot s to every slot before it
+	 */
+	private void computeRow(int s) {
+
+		int base = triangle(s);
+		for (int j = 0; j < s; j++)
+			mTable[base + j] = distance(s, j);
+	}
+
+	/**
+	 * @return the geodesic distance between two slots, meters
+	 */
+	private float distance(int slot1, int slot2) {
+		return (float) Ellipsoidal.leg(mSinPhi[slot1], mCosPhi[slot1],
+				mSinPhi[slot2], mCosPhi[slot2], mPhi[slot2] - mPhi[slot1],
+				mLambda[slot2] - mLambda[slot1]);
+	}
+
+	private void set(int slot1, int slot2, float meters) {
+		if (slot1 > slot2)
+			mTable[triangle(slot1) + slot2] = meters;
+		else
+			mTable[triangle(slot2) + slot1] = meters;
+	}
+
+	/**
+	 * @return the number of entries in the triangle of n points, which is
+	 *         also the start of row n. Fits an int for n up to MAX_POINTS.
+	 */
+	private static int triangle(int n) {
+		return (int) ((long) n * (n - 1) / 2);
+	}
+
+	private ByteBuffer buffer() {
+		if (mBuffer == null)
+			mBuffer = ByteBuffer.allocate(IO_CHUNK * 4);
+		return mBuffer;
+	}
+
+	private void ensureCapacity(int capacity) {
+
+		if (capacity <= mIds.length)
+			return;
+		if (capacity > MAX_POINTS)
+			throw new IllegalStateException("Distance table is full, "
+					+ MAX_POINTS + " points");
+
+		capacity = Math.min(Math.max(capacity, mIds.length
+				+ (mIds.length >> 1)), MAX_POINTS);
+
+		int[] ids = new int[capacity];
+		System.arraycopy(mIds, 0, ids, 0, mSize);
+		mIds = ids;
+
+		double[] x = new double[capacity];
+		System.arraycopy(mX, 0, x, 0, mSize);
+		mX = x;
+
+		double[] y = new double[capacity];
+		System.arraycopy(mY, 0, y, 0, mSize);
+		mY = y;
+
+		mPhi = copyOf(mPhi, capacity);
+		mLambda = copyOf(mLambda, capacity);
+		mSinPhi = copyOf(mSinPhi, capacity);
+		mCosPhi = copyOf(mCosPhi, capacity);
+
+		float[] table = new float[triangle(capacity)];
+		System.arraycopy(mTable, 0, table, 0, triangle(mSize));
+		mTable = table;
+	}
+
+	private double[] copyOf(double[] source, int capacity) {
+		double[] result = new double[capacity];
+		System.arraycopy(source, 0, result, 0, mSize);
+		return result;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new IOException("Distance table file is truncated");
+		}
+	}
+}
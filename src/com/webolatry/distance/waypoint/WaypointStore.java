@@ -0,0 +1,596 @@
+/*
+ * Copyright (C) 2013 Tom Bruns
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Code style - following Android standards
+ */
+
+package com.webolatry.distance.waypoint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.webolatry.distance.geo.NearestTracker;
+import com.webolatry.distance.geo.PointIndex;
+import com.webolatry.distance.service.Point;
+
+/**
+ * Named geographic points, persisted together in a single file and indexed
+ * in memory by name and by location.
+ *
+ * Changes are only held in memory until commit(), which rewrites the file
+ * once for any number of changes. The file is replaced atomically, so a
+ * failed commit leaves the previous contents intact.
+ *
+ * Each waypoint also has an id, stable across moves, removals of other
+ * waypoints and restarts, that keys the optional DistanceTable of the
+ * distances between every pair of waypoints. The table is kept in its own
+ * file, loaded and committed with the waypoints. It is a cache: if it is
+ * missing, corrupt or stale it is brought up to date from the waypoints.
+ *
+ * load() and commit() do file i/o and belong on a background thread; all
+ * methods are synchronized so the store can be handed between threads.
+ *
+ * File format (big-endian): int magic, int version, int count, int next id,
+ * then per waypoint an int id, a modified-UTF-8 name, double x, double y.
+ * The next id is saved so the id of a removed waypoint is never given out
+ * again. Version 1 files have no ids, they are numbered in file order.
+ *
+ * @author Tom
+ *
+ */
+public class WaypointStore {
+
+	/** identifies a waypoint file ("DWPT") */
+	private static final int MAGIC = 0x44575054;
+	/** current file format version */
+	private static final int VERSION = 2;
+	/** the file format version without ids */
+	private static final int VERSION_NO_IDS = 1;
+	/** bytes of the magic, version, count and next id */
+	private static final int HEADER_BYTES = 16;
+	/** bytes of a version 1 header, without the next id */
+	private static final int HEADER_BYTES_NO_IDS = 12;
+	/** bytes of a version 1 waypoint with an empty name */
+	private static final int MIN_RECORD_BYTES_NO_IDS = 18;
+	/** bytes of a waypoint with an empty name */
+	private static final int MIN_RECORD_BYTES = 22;
+
+	/** the backing file */
+	private File mFile;
+	/** the distance table file, null if no table is kept */
+	private File mDistanceFile;
+
+	/** number of waypoints */
+	private int mSize;
+	/** the id of the next new waypoint */
+	private int mNextId;
+	/** waypoint ids, by slot */
+	private int[] mIds = new int[16];
+	/** waypoint names, by slot */
+	private ArrayList<String> mNames = new ArrayList<String>();
+	/** waypoint longitudes, by slot */
+	private double[] mX = new double[16];
+	/** waypoint latitudes, by slot */
+	private double[] mY = new double[16];
+	/** name to slot */
+	private HashMap<String, Integer> mIndex = new HashMap<String, Integer>();
+	/** location index, point ids are slots */
+	private PointIndex mLocations = new PointIndex(16);
+	/** scratch for single-point queries */
+	private int[] mNearestSlot = new int[1];
+	/** scratch for query results, slots, as long as the last names array */
+	private int[] mSlots = new int[0];
+	/** keeps the closest waypoints to a moving location, made by track() */
+	private NearestTracker mTracker;
+	/** distances between every pair of waypoints by id, null if not kept */
+	private DistanceTable mDistances;
+
+	/** true if there are changes not yet committed */
+	private boolean mDirty;
+	/** true if the distance table has changes not yet committed */
+	private boolean mDistancesDirty;
+
+	/**
+	 * constructor, the store starts empty until load() is called
+	 *
+	 * @param file the backing file
+	 */
+	public WaypointStore(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * constructor, for a store that also keeps the distance between every
+	 * pair of waypoints. Every put() and remove() then costs O(n), and the
+	 * store is limited to DistanceTable.MAX_POINTS waypoints.
+	 *
+	 * @param file the backing file
+	 * @param distanceFile the distance table file
+	 */
+	public WaypointStore(File file, File distanceFile) {
+		mFile = file;
+		mDistanceFile = distanceFile;
+		mDistances = new DistanceTable(16);
+	}
+
+	/**
+	 * Replaces the contents of the store with the backing file. A missing
+	 * file is an empty store.
+	 *
+	 * @throws IOException if the file exists but can't be read
+	 */
+	public synchronized void load() throws IOException {
+
+		clear();
+		mDirty = false;
+
+		DataInputStream dis;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mFile), 8192));
+		} catch (FileNotFoundException e) {
+			/* nothing saved yet */
+			loadDistances();
+			return;
+		}
+
+		try {
+
+			if (dis.readInt() != MAGIC)
+				throw new IOException("Not a waypoint file");
+			int version = dis.readInt();
+			if (version != VERSION && version != VERSION_NO_IDS)
+				throw new IOException("Unsupported waypoint file version "
+						+ version);
+			boolean hasIds = version != VERSION_NO_IDS;
+
+			/*
+			 * a record is at least an empty name and two doubles, so a
+			 * corrupt count is caught before it sizes the arrays
+			 */
+			int header = hasIds ? HEADER_BYTES : HEADER_BYTES_NO_IDS;
+			int record = hasIds ? MIN_RECORD_BYTES : MIN_RECORD_BYTES_NO_IDS;
+			int count = dis.readInt();
+			if (count < 0 || count > (mFile.length() - header) / record)
+				throw new IOException("Corrupt waypoint file");
+
+			/* never below the stored ids, whatever the header says */
+			mNextId = hasIds ? dis.readInt() : 0;
+			if (mNextId < 0)
+				throw new IOException("Corrupt waypoint file");
+
+			ensureCapacity(count);
+			mNames.ensureCapacity(count);
+
+			/* names and ids must each be unique, as put() keeps them */
+			HashSet<Integer> ids = new HashSet<Integer>();
+
+			for (int i = 0; i < count; i++) {
+				int id = hasIds ? dis.readInt() : i;
+				String name = dis.readUTF();
+				double x = dis.readDouble();
+				double y = dis.readDouble();
+				if (id < 0 || mIndex.containsKey(name)
+						|| !ids.add(Integer.valueOf(id)))
+					throw new IOException("Corrupt waypoint file");
+				add(id, name, x, y);
+				mNextId = Math.max(mNextId, id + 1);
+			}
+
+			/* loading isn't a change, except to give version 1 files ids */
+			mDirty = !hasIds;
+
+		} catch (IOException e) {
+			/* leave the store empty rather than partially loaded */
+			clear();
+			throw e;
+
+		} finally {
+			dis.close();
+		}
+
+		loadDistances();
+	}
+
+	/**
+	 * Writes the store to the backing file, if anything changed since the
+	 * last load or commit
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void commit() throws IOException {
+
+		if (mDirty)
+			write();
+
+		if (mDistancesDirty) {
+			mDistances.save(mDistanceFile);
+			mDistancesDirty = false;
+		}
+	}
+
+	private void write() throws IOException {
+
+		File temp = new File(mFile.getPath() + ".tmp");
+
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 8192));
+		try {
+
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(mSize);
+			dos.writeInt(mNextId);
+
+			for (int i = 0; i < mSize; i++) {
+				dos.writeInt(mIds[i]);
+				dos.writeUTF(mNames.get(i));
+				dos.writeDouble(mX[i]);
+				dos.writeDouble(mY[i]);
+			}
+
+		} finally {
+			dos.close();
+		}
+
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+			throw new IOException("Unable to replace " + mFile.getPath());
+		}
+
+		mDirty = false;
+	}
+
+	/**
+	 * Adds a waypoint, or moves it if the name is already used
+	 *
+	 * @param name the waypoint name
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @throws IllegalStateException if the store keeps distances and already
+	 *             holds DistanceTable.MAX_POINTS waypoints
+	 */
+	public synchronized void put(String name, double x, double y) {
+
+		Integer slot = mIndex.get(name);
+
+		if (slot != null) {
+			int i = slot.intValue();
+			mX[i] = x;
+			mY[i] = y;
+			mLocations.insert(i, x, y);
+			putDistances(mIds[i], x, y);
+		} else {
+			/* the table goes first, it refuses a point before any change */
+			putDistances(mNextId, x, y);
+			add(mNextId++, name, x, y);
+		}
+
+		mDirty = true;
+	}
+
+	/**
+	 * Removes a waypoint
+	 *
+	 * @param name the waypoint name
+	 * @return true if the waypoint existed
+	 */
+	public synchronized boolean remove(String name) {
+
+		Integer slot = mIndex.remove(name);
+		if (slot == null)
+			return false;
+
+		/* fill the hole with the last waypoint, slots stay dense */
+		int i = slot.intValue();
+		int last = mSize - 1;
+		String lastName = mNames.remove(last);
+		mLocations.remove(last);
+
+		if (mDistances != null) {
+			mDistances.remove(mIds[i]);
+			mDistancesDirty = true;
+		}
+
+		if (i != last) {
+			mIds[i] = mIds[last];
+			mNames.set(i, lastName);
+			mX[i] = mX[last];
+			mY[i] = mY[last];
+			mIndex.put(lastName, slot);
+			mLocations.insert(i, mX[i], mY[i]);
+		}
+
+		mSize--;
+		mDirty = true;
+		return true;
+	}
+
+	/**
+	 * @param name the waypoint name
+	 * @return a copy of the named waypoint location, null if there is none
+	 */
+	public synchronized Point get(String name) {
+
+		Integer slot = mIndex.get(name);
+		if (slot == null)
+			return null;
+
+		int i = slot.intValue();
+		return new Point(mX[i], mY[i]);
+	}
+
+	/**
+	 * @param name the waypoint name
+	 * @return the id of the named waypoint, -1 if there is none
+	 */
+	public synchronized int getId(String name) {
+
+		Integer slot = mIndex.get(name);
+		if (slot == null)
+			return -1;
+
+		return mIds[slot.intValue()];
+	}
+
+	/**
+	 * @param name1 one waypoint name
+	 * @param name2 the other waypoint name
+	 * @return the geodesic distance between the waypoints in meters, from the
+	 *         distance table. NaN if either waypoint doesn't exist or the
+	 *         store keeps no distances.
+	 */
+	public synchronized double getDistance(String name1, String name2) {
+
+		if (mDistances == null)
+			return Double.NaN;
+
+		int id1 = getId(name1);
+		int id2 = getId(name2);
+		if (id1 < 0 || id2 < 0)
+			return Double.NaN;
+
+		return mDistances.getDistance(id1, id2);
+	}
+
+	/**
+	 * @param name the waypoint name
+	 * @return true if the named waypoint exists
+	 */
+	public synchronized boolean contains(String name) {
+		return mIndex.containsKey(name);
+	}
+
+	/**
+	 * Finds the waypoint closest to a location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @return the name of the closest waypoint, null if the store is empty
+	 */
+	public synchronized String nearest(double x, double y) {
+
+		if (mLocations.nearest(x, y, 1, mNearestSlot, null) == 0)
+			return null;
+
+		return mNames.get(mNearestSlot[0]);
+	}
+
+	/**
+	 * Finds the waypoints closest to a location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param names receives the waypoint names, closest first. Its length is
+	 *            the number of waypoints wanted.
+	 * @param meters receives the great-circle distances in meters, may be
+	 *            null
+	 * @return the number of waypoints found
+	 */
+	public synchronized int nearest(double x, double y, String[] names,
+			double[] meters) {
+
+		int[] slots = slots(names.length);
+		int count = mLocations.nearest(x, y, names.length, slots, meters);
+		for (int i = 0; i < count; i++)
+			names[i] = mNames.get(slots[i]);
+		return count;
+	}
+
+	/**
+	 * Finds the waypoints closest to a moving location, such as the current
+	 * gps fix. Gives the same waypoints as nearest(), but while the location
+	 * moves little between calls it only re-ranks the last candidates
+	 * instead of searching the index (see NearestTracker).
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param names receives the waypoint names, closest first. Its length is
+	 *            the number of waypoints wanted, keep it the same between
+	 *            calls.
+	 * @param meters receives the great-circle distances in meters, may be
+	 *            null
+	 * @return the number of waypoints found
+	 */
+	public synchronized int track(double x, double y, String[] names,
+			double[] meters) {
+
+		/* the tracker's ids are slots, it searches again after any change */
+		if (mTracker == null || mTracker.getK() != names.length)
+			mTracker = new NearestTracker(mLocations, names.length);
+
+		int count = mTracker.update(x, y);
+		for (int i = 0; i < count; i++) {
+			names[i] = mNames.get(mTracker.getId(i));
+			if (meters != null)
+				meters[i] = mTracker.getMeters(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the waypoints within a distance of a location
+	 *
+	 * @param x longitude (WGS84 degrees)
+	 * @param y latitude (WGS84 degrees)
+	 * @param radius the great-circle distance, in meters
+	 * @param names receives the waypoint names, closest first. Only the
+	 *            closest names.length waypoints are returned.
+	 * @param meters receives the distances in meters, may be null
+	 * @return the number of waypoints returned
+	 */
+	public synchronized int within(double x, double y, double radius,
+			String[] names, double[] meters) {
+
+		int[] slots = slots(names.length);
+		int count = mLocations.within(x, y, radius, slots, meters);
+		for (int i = 0; i < count; i++)
+			names[i] = mNames.get(slots[i]);
+		return count;
+	}
+
+	/**
+	 * @return the number of waypoints
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return true if there are changes not yet committed
+	 */
+	public synchronized boolean isDirty() {
+		return mDirty;
+	}
+
+	/**
+	 * @return the slot scratch array, of exactly the given length (the
+	 *         index takes the array length as the most results). Callers
+	 *         keep using the same length, so it is rarely reallocated.
+	 */
+	private int[] slots(int length) {
+		if (mSlots.length != length)
+			mSlots = new int[length];
+		return mSlots;
+	}
+
+	/**
+	 * Adds a new waypoint to the end of the slots
+	 */
+	private void add(int id, String name, double x, double y) {
+
+		ensureCapacity(mSize + 1);
+		mIds[mSize] = id;
+		mNames.add(name);
+		mX[mSize] = x;
+		mY[mSize] = y;
+		mIndex.put(name, Integer.valueOf(mSize));
+		mLocations.insert(mSize, x, y);
+		mSize++;
+	}
+
+	private void putDistances(int id, double x, double y) {
+
+		if (mDistances != null) {
+			mDistances.put(id, x, y);
+			mDistancesDirty = true;
+		}
+	}
+
+	/**
+	 * Loads the distance table, then brings it up to date with the loaded
+	 * waypoints. It may be stale if the last commit stopped between the two
+	 * files.
+	 */
+	private void loadDistances() {
+
+		if (mDistances == null)
+			return;
+
+		mDistancesDirty = false;
+
+		try {
+			mDistances.load(mDistanceFile);
+		} catch (IOException e) {
+			/* only a cache, rebuilt below */
+			e.printStackTrace();
+		}
+
+		/*
+		 * points the waypoints no longer have, last slot first: a removal
+		 * moves the last point into the hole, which was already checked
+		 */
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (int i = 0; i < mSize; i++)
+			ids.add(Integer.valueOf(mIds[i]));
+		for (int s = mDistances.size() - 1; s >= 0; s--) {
+			int id = mDistances.getId(s);
+			if (!ids.contains(Integer.valueOf(id))) {
+				mDistances.remove(id);
+				mDistancesDirty = true;
+			}
+		}
+
+		/* added or moved waypoints */
+		for (int i = 0; i < mSize; i++) {
+			int s = mDistances.getSlot(mIds[i]);
+			if (s < 0 || mDistances.getX(s) != mX[i]
+					|| mDistances.getY(s) != mY[i])
+				putDistances(mIds[i], mX[i], mY[i]);
+		}
+	}
+
+	private void clear() {
+		mSize = 0;
+		mNextId = 0;
+		mNames.clear();
+		mIndex.clear();
+		mLocations.clear();
+		if (mDistances != null)
+			mDistances.clear();
+	}
+
+	private void ensureCapacity(int capacity) {
+
+		if (capacity <= mX.length)
+			return;
+
+		capacity = Math.max(capacity, mX.length * 2);
+
+		int[] ids = new int[capacity];
+		System.arraycopy(mIds, 0, ids, 0, mSize);
+		mIds = ids;
+
+		double[] x = new double[capacity];
+		System.arraycopy(mX, 0, x, 0, mSize);
+		mX = x;
+
+		double[] y = new double[capacity];
+		System.arraycopy(mY, 0, y, 0, mSize);
+		mY = y;
+	}
+}